@@ -2,20 +2,26 @@ package com.bookmap.plugins.layer0.bitmex;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.bookmap.plugins.layer0.bitmex.adapter.BmConnector;
 import com.bookmap.plugins.layer0.bitmex.adapter.BmInstrument;
+import com.bookmap.plugins.layer0.bitmex.adapter.BmOrderBook;
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils;
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils.GeneralType;
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils.Method;
+import com.bookmap.plugins.layer0.bitmex.adapter.DepthBatch;
 import com.bookmap.plugins.layer0.bitmex.adapter.JsonParser;
+import com.bookmap.plugins.layer0.bitmex.adapter.RateGovernor;
 import com.bookmap.plugins.layer0.bitmex.adapter.ResponseByRest;
 import com.bookmap.plugins.layer0.bitmex.adapter.TradeConnector;
 import com.bookmap.plugins.layer0.bitmex.adapter.UnitData;
@@ -59,7 +65,6 @@ import velox.api.layer1.data.SubscribeInfo;
 import velox.api.layer1.data.SystemTextMessageType;
 import velox.api.layer1.data.TradeInfo;
 import velox.api.layer1.data.UserPasswordDemoLoginData;
-import velox.api.layer1.layers.utils.OrderBook;
 
 @Layer1ApiVersion(Layer1ApiVersionValue.VERSION1)
 @Layer0LiveModule(shortName = "MEX", fullName = "BitMEX")
@@ -70,7 +75,6 @@ public class Provider extends ExternalLiveBaseProvider {
 	private String tempClientId;
 	private HashMap<String, OrderInfoBuilder> workingOrders = new HashMap<>();
 
-	private List<OrderInfoBuilder> pendingOrders = new ArrayList<>();
 	private long orderCount = 0;
 	private long orderOcoCount = 0;
 	private boolean isCredentialsEmpty = false;
@@ -240,12 +244,25 @@ public class Provider extends ExternalLiveBaseProvider {
 
 	@Override
 	public void sendOrder(OrderSendParameters orderSendParameters) {
+		sendOrderAsync(orderSendParameters);
+	}
+
+	/**
+	 * Sends the order without waiting for BitMEX to answer. The orders it
+	 * creates are reported as pending at once and rejected if the answer is
+	 * an error.
+	 *
+	 * @return completed when the answer has been handled
+	 */
+	public CompletableFuture<Void> sendOrderAsync(OrderSendParameters orderSendParameters) {
 		String data;
 		GeneralType genType;
+		// orders of this request only, other requests may be in progress
+		List<OrderInfoBuilder> pendingOrders = new ArrayList<>();
 
 		if (orderSendParameters.getClass() == OcoOrderSendParameters.class) {// OCO
 			OcoOrderSendParameters ocoParams = (OcoOrderSendParameters) orderSendParameters;
-			data = createOcoOrdersStringData(ocoParams.orders);
+			data = createOcoOrdersStringData(ocoParams.orders, pendingOrders);
 			genType = GeneralType.ORDERBULK;
 		} else {
 			SimpleOrderSendParameters simpleParams = (SimpleOrderSendParameters) orderSendParameters;
@@ -253,30 +270,47 @@ public class Provider extends ExternalLiveBaseProvider {
 			if (isBracketOrder(simpleParams)) {// Bracket
 				SimpleOrderSendParameters stopLoss = createStopLossFromParameters(simpleParams);
 				SimpleOrderSendParameters takeProfit = createTakeProfitFromParameters(simpleParams);
-				data = createBracketOrderStringData(simpleParams, stopLoss, takeProfit);
+				data = createBracketOrderStringData(simpleParams, stopLoss, takeProfit, pendingOrders);
 				genType = GeneralType.ORDERBULK;
 			} else {// Single order otherwise
-				JsonObject json = prepareSimpleOrder(simpleParams, null, null);
+				JsonObject json = prepareSimpleOrder(simpleParams, null, null, pendingOrders);
 				data = json.toString();
 				genType = GeneralType.ORDER;
 			}
 		}
 
-		String response = tradeConnector.require(genType, Method.POST, data);
-		passCancelMessageIfNeededAndClearPendingList(response);
-		Log.info("[bitmex] Provider sendOrder: response = " + response);
+		return tradeConnector.requireAsync(genType, Method.POST, data, false, Collections.emptyList())
+				.handle((response, failure) -> {
+					if (failure != null) {
+						response = getFailureMessage("sendOrder", failure);
+					}
+					passCancelMessageIfNeededAndClearPendingList(pendingOrders, response);
+					Log.info("[bitmex] Provider sendOrder: response = " + response);
+					return null;
+				});
 	}
 
-	private void passCancelMessageIfNeededAndClearPendingList(String response) {
-		synchronized (pendingOrders) {
-			if (response != null) {// if bitmex responds with an error
-				for (OrderInfoBuilder builder : pendingOrders) {
-					rejectOrder(builder, response);
-				}
+	/**
+	 * The request failed before BitMEX could answer, the failure stands for
+	 * its answer
+	 */
+	private static String getFailureMessage(String method, Throwable failure) {
+		Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+				? failure.getCause() : failure;
+		Log.info("[bitmex] Provider " + method + ": request failed " + cause);
+		cause.printStackTrace();
+		return "Request failed: " + cause;
+	}
+
+	private void passCancelMessageIfNeededAndClearPendingList(List<OrderInfoBuilder> pendingOrders,
+			String response) {
+		if (response != null) {// if bitmex responds with an error
+			for (OrderInfoBuilder builder : pendingOrders) {
+				rejectOrder(builder, response);
 			}
-			// should be cleared anyway
-			pendingOrders.clear();
 		}
+		// should be cleared anyway
+		pendingOrders.clear();
 	}
 
 	private boolean isBracketOrder(SimpleOrderSendParameters simpleParams) {
@@ -323,20 +357,21 @@ public class Provider extends ExternalLiveBaseProvider {
 	private double checkLImitPriceForBracket(SimpleOrderSendParameters simpleParams, BmInstrument bmInstrument) {
 		double limitPriceChecked = simpleParams.limitPrice;
 		if (Double.isNaN(simpleParams.limitPrice)) {
-			OrderBook orderBook = bmInstrument.getOrderBook();
+			BmOrderBook orderBook = bmInstrument.getOrderBook();
 			limitPriceChecked = simpleParams.isBuy ? orderBook.getBestAskPriceOrNone() * bmInstrument.getTickSize()
 					: orderBook.getBestBidPriceOrNone() * bmInstrument.getTickSize();
 		}
 		return limitPriceChecked;
 	}
 
-	private String createOcoOrdersStringData(List<SimpleOrderSendParameters> ordersList) {
+	private String createOcoOrdersStringData(List<SimpleOrderSendParameters> ordersList,
+			List<OrderInfoBuilder> pendingOrders) {
 		String contingencyType = "OneCancelsTheOther";
 		String clOrdLinkID = System.currentTimeMillis() + "-LINKED-" + orderOcoCount++;
 
 		JsonArray array = new JsonArray();
 		for (SimpleOrderSendParameters simpleParams : ordersList) {
-			JsonObject json = prepareSimpleOrder(simpleParams, clOrdLinkID, contingencyType);
+			JsonObject json = prepareSimpleOrder(simpleParams, clOrdLinkID, contingencyType, pendingOrders);
 			array.add(json);
 		}
 		String data = "orders=" + array.toString();
@@ -345,19 +380,19 @@ public class Provider extends ExternalLiveBaseProvider {
 
 	private String createBracketOrderStringData(SimpleOrderSendParameters simpleParams,
 			SimpleOrderSendParameters stopLoss,
-			SimpleOrderSendParameters takeProfit) {
+			SimpleOrderSendParameters takeProfit, List<OrderInfoBuilder> pendingOrders) {
 		String clOrdLinkID = System.currentTimeMillis() + "-LINKED-" + orderOcoCount++;
 
 		JsonArray array = new JsonArray();
-		array.add(prepareSimpleOrder(simpleParams, clOrdLinkID, "OneTriggersTheOther"));
-		array.add(prepareSimpleOrder(stopLoss, clOrdLinkID, "OneCancelsTheOther"));
-		array.add(prepareSimpleOrder(takeProfit, clOrdLinkID, "OneCancelsTheOther"));
+		array.add(prepareSimpleOrder(simpleParams, clOrdLinkID, "OneTriggersTheOther", pendingOrders));
+		array.add(prepareSimpleOrder(stopLoss, clOrdLinkID, "OneCancelsTheOther", pendingOrders));
+		array.add(prepareSimpleOrder(takeProfit, clOrdLinkID, "OneCancelsTheOther", pendingOrders));
 		String data = "orders=" + array.toString();
 		return data;
 	}
 
 	private JsonObject prepareSimpleOrder(SimpleOrderSendParameters simpleParameters, String clOrdLinkID,
-			String contingencyType) {
+			String contingencyType, List<OrderInfoBuilder> pendingOrders) {
 		// Detecting order type
 		OrderType orderType = OrderType.getTypeFromPrices(simpleParameters.stopPrice, simpleParameters.limitPrice);
 		Log.info("[bitmex] Provider prepareSimpleOrder: orderType = " + orderType.toString());
@@ -382,9 +417,7 @@ public class Provider extends ExternalLiveBaseProvider {
 		 * pending orders are added to the list to cancel them later if BitMEX
 		 * reports an error trying placing orders
 		 */
-		synchronized (pendingOrders) {
-			pendingOrders.add(builder);
-		}
+		pendingOrders.add(builder);
 
 		Log.info("[bitmex] Provider prepareSimpleOrder: getting sent to bitmex");
 		synchronized (workingOrders) {
@@ -441,14 +474,19 @@ public class Provider extends ExternalLiveBaseProvider {
 			} else if (isTrailingStop) {
 				// trailing stop
 				JsonObject json = tradeConnector.moveTrailingStepJson(orderMoveParameters);
-				tradeConnector.require(GeneralType.ORDER, Method.PUT, json.toString());
+				requireMove(RateGovernor.Lane.CANCEL, GeneralType.ORDER, json.toString(),
+						Collections.singletonList(orderMoveParameters.orderId));
 			} else {// single order
 				boolean isStopTriggered;
 				synchronized (workingOrders) {
 					isStopTriggered = workingOrders.get(orderMoveParameters.orderId).isStopTriggered();
 				}
 				JsonObject json = tradeConnector.moveOrderJson(orderMoveParameters, isStopTriggered);
-				tradeConnector.require(GeneralType.ORDER, Method.PUT, json.toString());
+				// amends of stops go with the cancels
+				boolean isStop = OrderType.getTypeFromPrices(orderMoveParameters.stopPrice,
+						orderMoveParameters.limitPrice) != OrderType.LMT;
+				requireMove(isStop ? RateGovernor.Lane.CANCEL : RateGovernor.Lane.ORDER, GeneralType.ORDER,
+						json.toString(), Collections.singletonList(orderMoveParameters.orderId));
 			}
 		} else {
 			throw new UnsupportedOperationException("Unsupported order type");
@@ -456,6 +494,20 @@ public class Provider extends ExternalLiveBaseProvider {
 
 	}
 
+	private void requireMove(RateGovernor.Lane lane, GeneralType genType, String data, List<String> orderIds) {
+		tradeConnector.requireAsync(lane, genType, Method.PUT, data, false, orderIds)
+				.whenComplete((response, failure) -> {
+					if (failure != null) {
+						// the orders have not moved, they are still where
+						// they are shown
+						String message = getFailureMessage("updateOrder", failure);
+						adminListeners.forEach(l -> l.onSystemTextMessage(message,
+								SystemTextMessageType.ORDER_FAILURE));
+					}
+					Log.info("[bitmex] Provider updateOrder: (move) response = " + response);
+				});
+	}
+
 	private void passCancelParameters(OrderCancelParameters orderCancelParameters) {
 		if (orderCancelParameters.batchEnd == true) {
 			/*
@@ -535,9 +587,14 @@ public class Provider extends ExternalLiveBaseProvider {
 			data = tradeConnector.resizeOrder(otherIds, newSize);
 		}
 		setPendingStatus(pendingIds, OrderStatus.PENDING_MODIFY);
-		String response = tradeConnector.require(type, Method.PUT, data);
-		passCancelMessageIfNeededAndClearPendingListForResize(pendingIds, response);
-		Log.info("[bitmex] Provider passResizeParameters: server response" + response);
+		tradeConnector.requireAsync(type, Method.PUT, data, false, pendingIds).whenComplete((response, failure) -> {
+			if (failure != null) {
+				// back to working, as on an error answer
+				response = getFailureMessage("passResizeParameters", failure);
+			}
+			passCancelMessageIfNeededAndClearPendingListForResize(pendingIds, response);
+			Log.info("[bitmex] Provider passResizeParameters: server response" + response);
+		});
 	}
 
 	private void setPendingStatus(List<String> pendingIds, OrderStatus status) {
@@ -616,7 +673,9 @@ public class Provider extends ExternalLiveBaseProvider {
 		array.add(tradeConnector.moveOrderJson(moveParamsOne, isChildZeroStopTriggered));
 		array.add(tradeConnector.moveOrderJson(moveParamsTwo, isChildOneStopTriggered));
 		String data = "orders=" + array.toString();
-		tradeConnector.require(GeneralType.ORDERBULK, Method.PUT, data);
+		// the stop loss moves too
+		requireMove(RateGovernor.Lane.CANCEL, GeneralType.ORDERBULK, data,
+				Arrays.asList(orderMoveParameters.orderId, children.get(0), children.get(1)));
 	}
 
 	private double getDifference(OrderMoveParameters orderMoveParameters) {
@@ -732,8 +791,25 @@ public class Provider extends ExternalLiveBaseProvider {
 	}
 
 	public void listenForOrderBookL2(UnitData unit) {
+		listenForOrderBookL2(unit.getSymbol(), unit.isBid(), unit.getIntPrice(), unit.getSize());
+	}
+
+	public void listenForOrderBookL2(String symbol, boolean isBid, int intPrice, long size) {
+		for (Layer1ApiDataListener listener : dataListeners) {
+			listener.onDepth(symbol, isBid, intPrice, (int) size);
+		}
+	}
+
+	/**
+	 * Delivers a whole orderBookL2 message, see DepthBatch for the order
+	 */
+	public void listenForOrderBookL2(DepthBatch batch) {
+		String symbol = batch.getSymbol();
+		int count = batch.getCount();
 		for (Layer1ApiDataListener listener : dataListeners) {
-			listener.onDepth(unit.getSymbol(), unit.isBid(), unit.getIntPrice(), (int) unit.getSize());
+			for (int i = 0; i < count; i++) {
+				listener.onDepth(symbol, batch.isBid(i), batch.getIntPrice(i), (int) batch.getSize(i));
+			}
 		}
 	}
 
@@ -812,7 +888,7 @@ public class Provider extends ExternalLiveBaseProvider {
 			BmInstrument instr = connector.getActiveInstrumentsMap().get(symbol);
 			// instr.setExecutionsVolume(instr.getExecutionsVolume() + (int)
 			// exec.getCumQty());
-			instr.setExecutionsVolume(instr.getExecutionsVolume() + (int) exec.getLastQty());
+			instr.addExecutionsVolume((int) exec.getLastQty());
 
 			// Changing the order itself
 			builder.setAverageFillPrice(exec.getAvgPx());
@@ -1132,10 +1208,11 @@ public class Provider extends ExternalLiveBaseProvider {
 	public void close() {
 		// Stop events generation
 		Log.info("[bitmex] Provider close(): ");
-		if (connector.getSocket() != null) {
-			connector.getSocket().close();
-		}
+		connector.closeSockets();
 		connector.setInterruptionNeeded(true);
+		if (tradeConnector != null) {
+			tradeConnector.close();
+		}
 		providerThread.interrupt();
 	}
 
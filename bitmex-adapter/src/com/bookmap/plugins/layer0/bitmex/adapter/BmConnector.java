@@ -1,12 +1,9 @@
 package com.bookmap.plugins.layer0.bitmex.adapter;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.NoRouteToHostException;
 import java.net.SocketException;
 import java.net.URI;
-import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.channels.UnresolvedAddressException;
 import java.time.ZoneOffset;
@@ -17,17 +14,15 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.UpgradeException;
@@ -50,14 +45,40 @@ public class BmConnector implements Runnable {
 	private HashMap<String, BmInstrument> activeBmInstrumentsMap = new HashMap<>();
 	private CountDownLatch webSocketStartingLatch = new CountDownLatch(1);
 	private CountDownLatch webSocketAuthLatch = new CountDownLatch(1);
-	private ClientSocket socket;
+	// instruments are spread over the market data sockets, private topics have
+	// their own socket and pipeline so they never wait behind market data
+	private volatile ClientSocket[] marketSockets;
+	private volatile ClientSocket privateSocket;
+	// spare sockets, see ConnectorUtils.WS_STANDBY
+	private volatile ClientSocket marketStandby;
+	private volatile ClientSocket privateStandby;
+	private final Object failoverLock = new Object();
+	// sockets of the connection being set up, not yet in marketSockets or
+	// privateSocket, guarded by failoverLock
+	private final Set<ClientSocket> startingSockets = new HashSet<>();
+	// counted down by the authKey ack of a private standby socket
+	private volatile CountDownLatch standbyAuthLatch;
+	// of the current connection, for opening standby sockets
+	private volatile WebSocketClient client;
+	private volatile URI wsUri;
+	private volatile CountDownLatch closingLatch;
 
 	private JsonParser parser = new JsonParser();
+	private IngestPipeline pipeline;
+	private IngestPipeline privatePipeline;
+	private FrameRecorder recorder;
+	// REST queries that follow subscriptions, see RateGovernor
+	private ExecutorService restExecutor;
+	private MarketDataRouter router;
 	private boolean isReconnecting = false;
 	private Provider provider;
 	private TradeConnector tradeConnector;
 
-	private ScheduledExecutorService executionsResetTimer;
+	// what an unsubscribed instrument holds
+	private static final long EMPTY_FOOTPRINT = new BmOrderBook().getFootprint();
+
+	private WheelTimer.Timeout executionsResetTimeout;
+	private WheelTimer.Timeout footprintTimeout;
 	private int executionDay = 0;
 	private boolean isExecutionReset;
 
@@ -69,8 +90,35 @@ public class BmConnector implements Runnable {
 		this.provider = provider;
 	}
 
-	public ClientSocket getSocket() {
-		return socket;
+	public void closeSockets() {
+		// standby sockets go first so nothing is promoted
+		ClientSocket standby = marketStandby;
+		marketStandby = null;
+		if (standby != null) {
+			standby.close();
+		}
+		standby = privateStandby;
+		privateStandby = null;
+		if (standby != null) {
+			standby.close();
+		}
+
+		ClientSocket[] sockets = marketSockets;
+		if (sockets != null) {
+			for (ClientSocket socket : sockets) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+		}
+		ClientSocket socket = privateSocket;
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	public IngestPipeline getPipeline() {
+		return pipeline;
 	}
 
 	public void setInterruptionNeeded(boolean interruptionNeeded) {
@@ -85,6 +133,18 @@ public class BmConnector implements Runnable {
 		return webSocketAuthLatch;
 	}
 
+	/**
+	 * Called by the parser when BitMEX accepts an authKey request. After the
+	 * start only a private standby socket sends one.
+	 */
+	public void onWebSocketAuthenticated() {
+		webSocketAuthLatch.countDown();
+		CountDownLatch latch = standbyAuthLatch;
+		if (latch != null) {
+			latch.countDown();
+		}
+	}
+
 	public TradeConnector getTradeConnector() {
 		return tradeConnector;
 	}
@@ -138,26 +198,44 @@ public class BmConnector implements Runnable {
 	public void wsConnect() {
 		SslContextFactory ssl = new SslContextFactory();
 		WebSocketClient client = new WebSocketClient(ssl);
+		// any socket closing means reconnecting all of them, unless a
+		// standby socket takes over
+		CountDownLatch closingLatch = new CountDownLatch(1);
+		this.closingLatch = closingLatch;
+		this.client = client;
 		Log.info("[bitmex] BmConnector wsConnect websocket starting...");
 
 		try {
-			Log.info("[bitmex] BmConnector wsConnect websocket being created...");
-			socket = new ClientSocket();
 			parser.setActiveInstrumentsMap(Collections.unmodifiableMap(activeBmInstrumentsMap));
-			socket.setParser(parser);
 			parser.setProvider(provider);
+			parser.setResyncListener(this::resync);
 
 			Log.info("[bitmex] BmConnector wsConnect client starting...");
 
+			if (ConnectorUtils.WS_DEFLATE) {
+				client.getExtensionFactory().register("permessage-deflate", MeteredDeflateExtension.class);
+			}
 			client.start();
 			URI echoUri = new URI(wssUrl);
-			ClientUpgradeRequest request = new ClientUpgradeRequest();
-
-			Log.info("[bitmex] BmConnector wsConnect websocket connecting...");
-			client.connect(socket, echoUri, request);
-			socket.getOpeningLatch().await();
+			wsUri = echoUri;
+
+			// with redundant market data the second line repeats the first one
+			int connections = ConnectorUtils.MARKET_DATA_CONNECTIONS;
+			int lines = ConnectorUtils.MARKET_DATA_REDUNDANT ? LineArbiter.LINES : 1;
+			ClientSocket[] sockets = new ClientSocket[connections * lines];
+			for (int i = 0; i < sockets.length; i++) {
+				Log.info("[bitmex] BmConnector wsConnect market data websocket " + i + " connecting...");
+				sockets[i] = connectSocket(client, echoUri, "market-" + i, i, i / connections, pipeline,
+						closingLatch, false);
+			}
+			marketSockets = sockets;
 
 			if (!provider.isCredentialsEmpty()) {// authentication needed
+				Log.info("[bitmex] BmConnector wsConnect private websocket connecting...");
+				ClientSocket socket = connectSocket(client, echoUri, "private", sockets.length, 0, privatePipeline,
+						closingLatch, false);
+				privateSocket = socket;
+
 				Log.info("[bitmex] BmConnector wsConnect websocket auth...");
 				String mes = wssAuthTwo();
 				Log.info("[bitmex] BmConnector wsConnect websocket auth message passed");
@@ -172,24 +250,42 @@ public class BmConnector implements Runnable {
 				reportHistoricalExecutions("Canceled");
 			}
 
+			synchronized (failoverLock) {
+				// all registered, failover finds them from now on
+				startingSockets.clear();
+			}
 			webSocketStartingLatch.countDown();
 			Log.info("[bitmex] BmConnector wsConnect websocket webSocketStartingLatch is down");
 
 			if (isReconnecting) {
 				provider.reportRestoredCoonection();
 
-				for (BmInstrument instr : activeBmInstrumentsMap.values()) {
-					if (instr.isSubscribed()) {
-						subscribe(instr);
+				List<BmInstrument> instruments = new ArrayList<>();
+				synchronized (activeBmInstrumentsMap) {
+					for (BmInstrument instr : activeBmInstrumentsMap.values()) {
+						if (instr.isSubscribed()) {
+							instruments.add(instr);
+						}
 					}
 				}
+				subscribe(instruments);
 				isReconnecting = false;
 			}
 
+			if (ConnectorUtils.WS_STANDBY) {
+				scheduleStandby(false, 0);
+				if (privateSocket != null) {
+					scheduleStandby(true, 0);
+				}
+			}
+
 			Log.info("[bitmex] BmConnector wsConnect subscribed to an instrument ");
-			// WAITING FOR THE SOCKET TO CLOSE
-			socket.getClosingLatch().await();
-			socket = null;
+			// WAITING FOR ANY SOCKET TO CLOSE
+			closingLatch.await();
+			closeSockets();
+			logSocketMetrics();
+			marketSockets = null;
+			privateSocket = null;
 			isReconnecting = true;
 
 		} catch (UpgradeException e) {
@@ -205,6 +301,9 @@ public class BmConnector implements Runnable {
 			Log.info("[bitmex] BmConnector wsConnect an Exception thrown from the websocket");
 			throw new RuntimeException(e);
 		} finally {
+			synchronized (failoverLock) {
+				startingSockets.clear();
+			}
 			try {
 				client.stop();
 			} catch (Exception e) {
@@ -215,7 +314,246 @@ public class BmConnector implements Runnable {
 		}
 	}
 
-	public void sendWebsocketMessage(String message) {
+	/**
+	 * @param id
+	 *            connection id in the journal, market data sockets come
+	 *            first, then the private one
+	 * @param isStandby
+	 *            a standby socket is not part of the connection until it
+	 *            takes the place of a closed one
+	 */
+	private ClientSocket connectSocket(WebSocketClient client, URI uri, String name, int id, int line,
+			IngestPipeline pipeline, CountDownLatch closingLatch, boolean isStandby) throws Exception {
+		ClientSocket socket;
+		if (ConnectorUtils.WS_STANDBY) {
+			// a closed socket is replaced, see failover
+			socket = new ClientSocket(name, line, new CountDownLatch(1));
+			socket.setCloseListener(this::failover);
+			if (!isStandby) {
+				synchronized (failoverLock) {
+					startingSockets.add(socket);
+				}
+			}
+		} else {
+			socket = new ClientSocket(name, line, closingLatch);
+		}
+		socket.setPipeline(pipeline);
+		socket.setRecorder(recorder, id);
+		ClientUpgradeRequest request = new ClientUpgradeRequest();
+		if (ConnectorUtils.WS_DEFLATE) {
+			request.addExtensions("permessage-deflate");
+		}
+		client.connect(socket, uri, request);
+		socket.getOpeningLatch().await();
+		return socket;
+	}
+
+	private void logSocketMetrics() {
+		List<ClientSocket> sockets = new ArrayList<>();
+		if (marketSockets != null) {
+			Collections.addAll(sockets, marketSockets);
+		}
+		if (privateSocket != null) {
+			sockets.add(privateSocket);
+		}
+		for (ClientSocket socket : sockets) {
+			Log.info("[bitmex] BmConnector logSocketMetrics: " + socket.getName() + " liveness "
+					+ socket.getLiveness().getStats());
+			if (ConnectorUtils.WS_DEFLATE) {
+				MeteredDeflateExtension.Metrics metrics = socket.getDeflateMetrics();
+				Log.info("[bitmex] BmConnector logSocketMetrics: " + socket.getName() + " deflate "
+						+ (metrics == null ? "not negotiated" : metrics.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Logs the heap held by the market data state of each instrument that
+	 * holds any
+	 */
+	private void logFootprint() {
+		List<BmInstrument> instruments;
+		synchronized (activeBmInstrumentsMap) {
+			instruments = new ArrayList<>(activeBmInstrumentsMap.values());
+		}
+		long total = 0;
+		StringBuilder sb = new StringBuilder();
+		for (BmInstrument instr : instruments) {
+			long bytes = instr.getFootprint();
+			// an empty book is all that is left of a released instrument
+			if (bytes > EMPTY_FOOTPRINT) {
+				sb.append(" ").append(instr.getSymbol()).append("=").append(bytes / 1024).append("KB");
+			}
+			total += bytes;
+		}
+		Log.info("[bitmex] BmConnector logFootprint: " + total / 1024 + "KB in " + instruments.size()
+				+ " instruments," + sb);
+	}
+
+	private void scheduleStandby(boolean isPrivate, long delayMs) {
+		CountDownLatch closingLatch = this.closingLatch;
+		WheelTimer.shared().schedule(() -> openStandby(isPrivate, closingLatch), delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens a spare socket in the background, a private one is authenticated
+	 * right away and becomes a standby only when BitMEX has accepted the key.
+	 * Retried until it succeeds or the connection is over.
+	 */
+	private void openStandby(boolean isPrivate, CountDownLatch closingLatch) {
+		if (interruptionNeeded || closingLatch != this.closingLatch || closingLatch.getCount() == 0) {
+			return;
+		}
+		try {
+			String name = isPrivate ? "standby-private" : "standby-market";
+			Log.info("[bitmex] BmConnector openStandby: " + name + " connecting...");
+			ClientSocket socket = connectSocket(client, wsUri, name, -1, 0, isPrivate ? privatePipeline : pipeline,
+					closingLatch, true);
+			if (isPrivate) {
+				CountDownLatch authLatch = new CountDownLatch(1);
+				standbyAuthLatch = authLatch;
+				socket.sendMessage(wssAuthTwo());
+				boolean isAuthenticated = authLatch.await(10, TimeUnit.SECONDS);
+				standbyAuthLatch = null;
+				if (!isAuthenticated) {
+					socket.close();
+					throw new IOException("authKey not accepted");
+				}
+			}
+
+			synchronized (failoverLock) {
+				if (closingLatch != this.closingLatch || closingLatch.getCount() == 0) {
+					socket.close();
+					return;
+				}
+				if (isPrivate) {
+					privateStandby = socket;
+				} else {
+					marketStandby = socket;
+				}
+			}
+			Log.info("[bitmex] BmConnector openStandby: " + name + " ready");
+		} catch (Exception e) {
+			Log.info("[bitmex] BmConnector openStandby: failed, " + e.toString());
+			scheduleStandby(isPrivate, 5000);
+		}
+	}
+
+	/**
+	 * Called when a socket closes in standby mode. A standby socket takes the
+	 * place of the closed one right away and a new standby is opened in the
+	 * background. Without a standby at hand the whole connection is
+	 * restarted the usual way.
+	 */
+	private void failover(ClientSocket socket) {
+		synchronized (failoverLock) {
+			CountDownLatch closingLatch = this.closingLatch;
+			if (interruptionNeeded || closingLatch == null || closingLatch.getCount() == 0) {
+				return;
+			}
+			long start = System.nanoTime();
+
+			if (socket == marketStandby || socket == privateStandby) {
+				boolean isPrivate = socket == privateStandby;
+				if (isPrivate) {
+					privateStandby = null;
+				} else {
+					marketStandby = null;
+				}
+				scheduleStandby(isPrivate, 1000);
+				return;
+			}
+
+			ClientSocket[] sockets = marketSockets;
+			int index = -1;
+			for (int i = 0; sockets != null && i < sockets.length; i++) {
+				if (sockets[i] == socket) {
+					index = i;
+				}
+			}
+			boolean isPrivate = socket == privateSocket;
+			if (index < 0 && !isPrivate) {
+				if (startingSockets.contains(socket)) {
+					Log.info("[bitmex] BmConnector failover: " + socket.getName()
+							+ " closed while connecting, reconnecting");
+					closingLatch.countDown();
+				}
+				// otherwise closed on purpose
+				return;
+			}
+
+			ClientSocket standby = isPrivate ? privateStandby : marketStandby;
+			if (standby == null || !standby.isOpen()) {
+				Log.info("[bitmex] BmConnector failover: no standby for " + socket.getName() + ", reconnecting");
+				closingLatch.countDown();
+				return;
+			}
+
+			if (isPrivate) {
+				privateStandby = null;
+				standby.setRecorder(recorder, sockets == null ? 0 : sockets.length);
+				privateSocket = standby;
+				WsData wsData = new WsData(WebSocketOperation.SUBSCRIBE,
+						(Object[]) ConnectorUtils.getAuthenticatedTopicsList());
+				standby.sendMessage(JsonParser.gson.toJson(wsData));
+				// what has been missed while switching, off the critical path
+				WheelTimer.shared().schedule(() -> {
+					reportHistoricalExecutions("Filled");
+					reportHistoricalExecutions("Canceled");
+				}, 0, TimeUnit.MILLISECONDS);
+			} else {
+				marketStandby = null;
+				int connections = ConnectorUtils.MARKET_DATA_CONNECTIONS;
+				standby.setLine(index / connections);
+				standby.setRecorder(recorder, index);
+				ClientSocket[] replaced = sockets.clone();
+				replaced[index] = standby;
+				marketSockets = replaced;
+				resubscribe(standby, index % connections);
+			}
+			scheduleStandby(isPrivate, 0);
+			Log.info("[bitmex] BmConnector failover: " + socket.getName() + " replaced in "
+					+ (System.nanoTime() - start) / 1000 + " us");
+		}
+	}
+
+	/**
+	 * Subscribes the instruments of a market data connection through a
+	 * standby socket that has replaced its socket
+	 */
+	private void resubscribe(ClientSocket socket, int connectionIndex) {
+		List<String> symbols = new ArrayList<>();
+		synchronized (activeBmInstrumentsMap) {
+			for (BmInstrument instr : activeBmInstrumentsMap.values()) {
+				if (instr.isSubscribed() && instr.getConnectionIndex() == connectionIndex) {
+					symbols.add(instr.getSymbol());
+					if (!ConnectorUtils.MARKET_DATA_REDUNDANT) {
+						// with redundant lines the other line still has the snapshot
+						instr.setOrderBookSnapshotParsed(false);
+						launchSnapshotTimer(instr);
+					}
+				}
+			}
+		}
+		if (symbols.isEmpty()) {
+			return;
+		}
+		WsData wsData = new WsData(WebSocketOperation.SUBSCRIBE, symbols,
+				ConnectorUtils.getNonAuthenticatedTopicsList());
+		synchronized (socket) {
+			socket.sendMessage(JsonParser.gson.toJson(wsData));
+		}
+	}
+
+	/**
+	 * Sends the message through the socket the instrument is assigned to (a
+	 * socket on each line if market data is redundant)
+	 */
+	public void sendWebsocketMessage(BmInstrument instr, String message) {
+		sendWebsocketMessage(instr.getConnectionIndex(), message);
+	}
+
+	private void sendWebsocketMessage(int connectionIndex, String message) {
 		try {
 			getWebSocketStartingLatch().await();
 		} catch (InterruptedException e) {
@@ -223,39 +561,62 @@ public class BmConnector implements Runnable {
 			throw new RuntimeException();
 		}
 		Log.info("[bitmex] BmConnector wsConnect Send websocket message");
-		if (socket != null) {// this solution still needs to be examined
-			synchronized (socket) {
-				socket.sendMessage(message);
+		ClientSocket[] sockets = marketSockets;
+		if (sockets != null) {// this solution still needs to be examined
+			int connections = ConnectorUtils.MARKET_DATA_CONNECTIONS;
+			for (int i = connectionIndex % connections; i < sockets.length; i += connections) {
+				ClientSocket socket = sockets[i];
+				synchronized (socket) {
+					socket.sendMessage(message);
+				}
 			}
 		}
 	}
 
+	/**
+	 * An instrument keeps its connection across reconnects, a new one goes to
+	 * the connection with the fewest subscribed instruments
+	 */
+	private void assignConnection(BmInstrument instr) {
+		int connections = ConnectorUtils.MARKET_DATA_CONNECTIONS;
+		synchronized (activeBmInstrumentsMap) {
+			if (instr.getConnectionIndex() >= 0 && instr.getConnectionIndex() < connections) {
+				return;
+			}
+			int[] load = new int[connections];
+			for (BmInstrument other : activeBmInstrumentsMap.values()) {
+				if (other.isSubscribed() && other.getConnectionIndex() >= 0) {
+					load[other.getConnectionIndex() % connections]++;
+				}
+			}
+			int index = 0;
+			for (int i = 1; i < connections; i++) {
+				if (load[i] < load[index]) {
+					index = i;
+				}
+			}
+			instr.setConnectionIndex(index);
+		}
+		Log.info("[bitmex] BmConnector assignConnection: " + instr.getSymbol() + " -> market-"
+				+ instr.getConnectionIndex());
+	}
+
 	private String getServerResponse(String address) {
 		String response = null;
 
 		try {
-			URL url = new URL(address);
-			HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-			conn.setRequestMethod("GET");
-			conn.setRequestProperty("Accept", "application/json");
-
-			if (conn.getResponseCode() == 200) {
-				BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
-				StringBuilder sb = new StringBuilder();
-				String output = null;
-
-				while ((output = br.readLine()) != null) {
-					sb.append(output);
-				}
-				// conn.disconnect();
-				response = sb.toString();
+			RestClient.Response resp = RestClient.await(RateGovernor.sharedPublic().submit(RateGovernor.Lane.QUERY,
+					() -> RestClient.shared().sendAsync("GET", address,
+							Collections.singletonMap("Accept", "application/json"), null, null)));
+			if (resp.getStatus() == 200) {
+				response = resp.getBody();
 			}
 		} catch (UnknownHostException | NoRouteToHostException e) {
 			Log.info("[bitmex] BmConnector getServerResponse: no response from server");
 		} catch (SocketException e) {
 			Log.info("[bitmex] BmConnector getServerResponse: network is unreachable");
 		} catch (IOException e) {
-			Log.info("[bitmex] BmConnector getServerResponse: buffer reading exception");
+			Log.info("[bitmex] BmConnector getServerResponse: request failed");
 			e.printStackTrace();
 		}
 		return response;
@@ -282,7 +643,7 @@ public class BmConnector implements Runnable {
 	private void launchSnapshotTimer(BmInstrument instr) {
 		ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
 
-		TimerTask task = new TimerTask() {
+		Runnable task = new Runnable() {
 			@Override
 			public void run() {
 				if (!instr.isOrderBookSnapshotParsed()) {
@@ -293,25 +654,27 @@ public class BmConnector implements Runnable {
 				Log.info("[bitmex] BmConnector launchSnapshotTimer(): end " + now);
 			}
 		};
-		
-		Timer timer = new Timer();
-		instr.setSnapshotTimer(timer);
+
+		cancelSnapshotTimer(instr);
 		Log.info("[bitmex] BmConnector launchSnapshotTimer(): " + now);
-		timer.schedule(task, 10000);
+		instr.setSnapshotTimeout(WheelTimer.shared().schedule(task, 10000, TimeUnit.MILLISECONDS));
 	}
 
-	private void launchExecutionsResetTimer() {
-		class CustomThreadFactory implements ThreadFactory {
-			public Thread newThread(Runnable r) {
-				return new Thread(r, "-> BmConnector: executionsResetTimer");
-			}
+	private void cancelSnapshotTimer(BmInstrument instr) {
+		WheelTimer.Timeout timeout = instr.getSnapshotTimeout();
+		if (timeout != null) {
+			timeout.cancel();
+			instr.setSnapshotTimeout(null);
+			Log.info("[bitmex] BmConnector cancelSnapshotTimer: timer gets cancelled");
 		}
+	}
 
-		ScheduledExecutorService executionsResetTimer = Executors
-				.newSingleThreadScheduledExecutor(new CustomThreadFactory());
-		this.executionsResetTimer = executionsResetTimer;
+	private void launchExecutionsResetTimer() {
+		if (executionsResetTimeout != null) {
+			executionsResetTimeout.cancel();
+		}
 		Log.info("[bitmex] BmConnector launchExecutionsResetTimer(): ");
-		executionsResetTimer.scheduleWithFixedDelay(new Runnable() {
+		executionsResetTimeout = WheelTimer.shared().scheduleWithFixedDelay(new Runnable() {
 			@Override
 			public void run() {
 				int dayNow = ZonedDateTime.now(ZoneOffset.UTC).getDayOfYear();
@@ -337,25 +700,88 @@ public class BmConnector implements Runnable {
 
 	public void subscribe(BmInstrument instr) {
 		Log.info("[bitmex] BmConnector subscribe: " + instr.getSymbol());
+		assignConnection(instr);
+		if (ConnectorUtils.MARKET_DATA_REDUNDANT) {
+			instr.getLineArbiter().requestReset();
+		}
 		instr.setSubscribed(true);
-		sendWebsocketMessage(instr.getSubscribeReq());
+		sendWebsocketMessage(instr, instr.getSubscribeReq());
 		launchSnapshotTimer(instr);
 
 		if (!provider.isCredentialsEmpty()) {// if authenticated
-			instr.setExecutionsVolume(countExecutionsVolume(instr.getSymbol()));
+			countExecutionsVolumeLater(instr);
 		}
 	}
 
-	public void unSubscribe(BmInstrument instr) {
-		sendWebsocketMessage(instr.getUnSubscribeReq());
-		
-		Timer timer = instr.getSnapshotTimer();
-		if (timer != null) {
-			timer.cancel();
-			Log.info("[bitmex] BmConnector unSubscribe: timer gets cancelled");
+	/**
+	 * Subscribes many instruments at once (after a reconnect): one message
+	 * per connection, REST follow-ups in parallel
+	 */
+	public void subscribe(List<BmInstrument> instruments) {
+		Log.info("[bitmex] BmConnector subscribe: " + instruments.size() + " instruments");
+		Map<Integer, List<String>> symbolsByConnection = new HashMap<>();
+		for (BmInstrument instr : instruments) {
+			assignConnection(instr);
+			if (ConnectorUtils.MARKET_DATA_REDUNDANT) {
+				instr.getLineArbiter().requestReset();
+			}
+			instr.setSubscribed(true);
+			launchSnapshotTimer(instr);
+			symbolsByConnection.computeIfAbsent(instr.getConnectionIndex(), k -> new ArrayList<>())
+					.add(instr.getSymbol());
 		}
+
+		for (Map.Entry<Integer, List<String>> entry : symbolsByConnection.entrySet()) {
+			WsData wsData = new WsData(WebSocketOperation.SUBSCRIBE, entry.getValue(),
+					ConnectorUtils.getNonAuthenticatedTopicsList());
+			sendWebsocketMessage(entry.getKey(), JsonParser.gson.toJson(wsData));
+		}
+
+		if (!provider.isCredentialsEmpty()) {// if authenticated
+			for (BmInstrument instr : instruments) {
+				countExecutionsVolumeLater(instr);
+			}
+		}
+	}
+
+	private void countExecutionsVolumeLater(BmInstrument instr) {
+		instr.startExecutionsVolumeCount();
+		restExecutor.execute(() -> instr.setCountedExecutionsVolume(countExecutionsVolume(instr.getSymbol())));
+	}
+
+	public void unSubscribe(BmInstrument instr) {
+		// before the request, the ack tells by it what to release
 		instr.setSubscribed(false);
-		
+		cancelSnapshotTimer(instr);
+		sendWebsocketMessage(instr, instr.getUnSubscribeReq());
+	}
+
+	/**
+	 * Gets a fresh orderBookL2 snapshot of an instrument whose book has gone
+	 * wrong (see BookIntegrity) by unsubscribing and subscribing its book
+	 * only. Trades and the other instruments of the connection keep coming.
+	 * Called by the shard thread, the messages are sent by a timer worker.
+	 */
+	public void resync(BmInstrument instr) {
+		long delayNanos = instr.getBookIntegrity().scheduleResync(System.nanoTime());
+		Log.info("[bitmex] BmConnector resync: " + instr.getSymbol() + " in "
+				+ TimeUnit.NANOSECONDS.toMillis(delayNanos) + " ms " + instr.getBookIntegrity().getStats());
+
+		WheelTimer.shared().schedule(() -> {
+			if (!instr.isSubscribed()) {
+				return;
+			}
+			String topic = ConnectorUtils.containers.get(ConnectorUtils.Topic.ORDERBOOKL2).name;
+			instr.setOrderBookSnapshotParsed(false);
+			sendWebsocketMessage(instr, JsonParser.gson
+					.toJson(new WsData(instr.getSymbol(), WebSocketOperation.UNSUBSCRIBE, topic)));
+			if (ConnectorUtils.MARKET_DATA_REDUNDANT) {
+				instr.getLineArbiter().requestReset();
+			}
+			sendWebsocketMessage(instr,
+					JsonParser.gson.toJson(new WsData(instr.getSymbol(), WebSocketOperation.SUBSCRIBE, topic)));
+			launchSnapshotTimer(instr);
+		}, delayNanos, TimeUnit.NANOSECONDS);
 	}
 
 	private int countExecutionsVolume(String symbol) {
@@ -423,8 +849,35 @@ public class BmConnector implements Runnable {
 		}
 	}
 
+	private void launchPipeline() {
+		class CustomThreadFactory implements ThreadFactory {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "-> BmConnector: rest " + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+		restExecutor = Executors.newFixedThreadPool(ConnectorUtils.REST_CONCURRENCY, new CustomThreadFactory());
+
+		// the same as an exception in the websocket thread used to do
+		Runnable failureListener = this::closeSockets;
+		recorder = new FrameRecorder(provider.adminListeners);
+		router = new MarketDataRouter(parser, ConnectorUtils.MARKET_DATA_SHARDS, failureListener);
+		pipeline = new IngestPipeline("ingest", router, failureListener);
+		pipeline.setDropListener(router::onDropped);
+		// executions and order updates cannot be asked for again, so they
+		// are never dropped
+		privatePipeline = new IngestPipeline("private", (event, endOfBatch) -> parser.parse(event), failureListener,
+				ConnectorUtils.INGEST_BUFFER_SIZE, ConnectorUtils.INGEST_WAIT_STRATEGY,
+				IngestPipeline.OverflowPolicy.BLOCK);
+	}
+
 	@Override
 	public void run() {
+		launchPipeline();
+
 		while (!interruptionNeeded) {
 
 			if (!isConnectionEstablished()) {
@@ -447,6 +900,11 @@ public class BmConnector implements Runnable {
 				provider.setKnownInstruments(knownInstruments);
 
 				launchExecutionsResetTimer();
+				if (footprintTimeout == null && ConnectorUtils.FOOTPRINT_LOG_INTERVAL_MS > 0) {
+					footprintTimeout = WheelTimer.shared().scheduleWithFixedDelay(this::logFootprint,
+							ConnectorUtils.FOOTPRINT_LOG_INTERVAL_MS, ConnectorUtils.FOOTPRINT_LOG_INTERVAL_MS,
+							TimeUnit.MILLISECONDS);
+				}
 				if (activeBmInstrumentsMap.isEmpty()) {
 					continue;
 				}
@@ -456,13 +914,41 @@ public class BmConnector implements Runnable {
 			}
 			if (!interruptionNeeded) {
 				provider.reportLostCoonection();
+				Log.info("[bitmex] BmConnector run: ingest " + pipeline.getStats() + " " + router.getStats()
+						+ " private" + privatePipeline.getStats() + " recorder " + recorder.getStats() + " rest "
+						+ (tradeConnector == null ? "" : tradeConnector.getGovernor().getStats() + " ")
+						+ RateGovernor.sharedPublic().getStats() + " " + RestClient.shared().getStats()
+						+ (tradeConnector == null ? "" : " orders " + tradeConnector.getStats()));
+				for (BmInstrument instr : activeBmInstrumentsMap.values()) {
+					if (!instr.isSubscribed()) {
+						continue;
+					}
+					if (ConnectorUtils.MARKET_DATA_REDUNDANT) {
+						Log.info("[bitmex] BmConnector run: lines " + instr.getLineArbiter().getStats());
+					}
+					if (instr.getBookIntegrity().getResyncs() > 0) {
+						Log.info("[bitmex] BmConnector run: book " + instr.getBookIntegrity().getStats());
+					}
+				}
+				logFootprint();
 			}
 
 		}
-		executionsResetTimer.shutdownNow();
-		if (socket != null) {
-			socket.close();
+		if (executionsResetTimeout != null) {
+			executionsResetTimeout.cancel();
+		}
+		if (footprintTimeout != null) {
+			footprintTimeout.cancel();
+		}
+		for (BmInstrument instr : activeBmInstrumentsMap.values()) {
+			cancelSnapshotTimer(instr);
 		}
+		closeSockets();
+		pipeline.halt();
+		privatePipeline.halt();
+		router.halt();
+		recorder.close();
+		restExecutor.shutdownNow();
 		Log.info("[bitmex] BmConnector run: closing");
 	}
 }
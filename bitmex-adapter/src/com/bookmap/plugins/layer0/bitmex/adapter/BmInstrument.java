@@ -1,14 +1,8 @@
 package com.bookmap.plugins.layer0.bitmex.adapter;
 
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils.WebSocketOperation;
 
 import velox.api.layer1.common.Log;
-import velox.api.layer1.layers.utils.OrderBook;
 
 /*BmInstrument is the short for BitMEX Instrument
 Cannot be named simply "Instrument" 
@@ -19,24 +13,33 @@ public class BmInstrument {
 	private long multiplier;
 	private long underlyingToSettleMultiplier;
 	private String settlCurrency;
-	private boolean isSubscribed = false;
+	// set by the connector, read by the thread handling the unsubscribe ack
+	private volatile boolean isSubscribed = false;
 	private boolean isFirstSnapshotParsed = false;
 
 	// this one is for 'orderBookL2 and for 'trade'
 	// private Map<String, Boolean> instrumentPartialsParsed = new HashMap<>();
 
-	private OrderBook orderBook = new OrderBook();
-	private BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
-	private HashMap<Long, Integer> pricesMap = new HashMap<>();
+	// replaced by the shard thread when a new snapshot comes, read by others
+	private transient volatile BmOrderBook orderBook = new BmOrderBook();
+	private transient PriceIdCodec priceIdCodec;
+	private transient LineArbiter lineArbiter;
+	private transient DepthConflator depthConflator;
+	private transient BookIntegrity bookIntegrity;
 	private UnitPosition validPosition = new UnitPosition(0L, "", "", 0L, 0L, 0L, 0D);
 	private boolean orderBookSnapshotParsed = false;
 	private double lastBuy = Double.NaN;
 	private double lastSell = Double.NaN;
 	private int executionsVolume = 0;
+	// executions counted live since the REST count was started
+	private transient int liveExecutionsVolume = 0;
 	private int sellOrdersCount = 0;
 	private int buyOrdersCount = 0;
 
-	private transient Timer snapshotTimer = null;
+	// resubscribes if the snapshot does not come in time
+	private transient WheelTimer.Timeout snapshotTimeout = null;
+	// index of the market data websocket the instrument is subscribed through
+	private transient int connectionIndex = -1;
 
 	public BmInstrument(String symbol, double tickSize) {
 		super();
@@ -49,13 +52,20 @@ public class BmInstrument {
 	}
 
 
-	public Timer getSnapshotTimer() {
-//		return null;
-		return snapshotTimer;
+	public WheelTimer.Timeout getSnapshotTimeout() {
+		return snapshotTimeout;
+	}
+
+	public void setSnapshotTimeout(WheelTimer.Timeout snapshotTimeout) {
+		this.snapshotTimeout = snapshotTimeout;
+	}
+
+	public int getConnectionIndex() {
+		return connectionIndex;
 	}
 
-	public void setSnapshotTimer(Timer snapshotTimer) {
-		this.snapshotTimer = snapshotTimer;
+	public void setConnectionIndex(int connectionIndex) {
+		this.connectionIndex = connectionIndex;
 	}
 
 	public boolean isOrderBookSnapshotParsed() {
@@ -66,12 +76,36 @@ public class BmInstrument {
 		this.orderBookSnapshotParsed = orderBookSnapshotParsed;
 	}
 
-	public int getExecutionsVolume() {
+	public synchronized int getExecutionsVolume() {
 		return executionsVolume;
 	}
 
-	public void setExecutionsVolume(int executionsVolume) {
+	public synchronized void setExecutionsVolume(int executionsVolume) {
 		this.executionsVolume = executionsVolume;
+		liveExecutionsVolume = 0;
+	}
+
+	/**
+	 * Counts an execution that has come by websocket
+	 */
+	public synchronized void addExecutionsVolume(int qty) {
+		executionsVolume += qty;
+		liveExecutionsVolume += qty;
+	}
+
+	/**
+	 * Called before the volume is queried by REST
+	 */
+	public synchronized void startExecutionsVolumeCount() {
+		liveExecutionsVolume = 0;
+	}
+
+	/**
+	 * Takes the volume queried by REST and keeps the executions that have
+	 * come by websocket while the query was in progress
+	 */
+	public synchronized void setCountedExecutionsVolume(int countedVolume) {
+		executionsVolume = countedVolume + liveExecutionsVolume;
 	}
 
 	public long getMultiplier() {
@@ -82,10 +116,6 @@ public class BmInstrument {
 		this.multiplier = multiplier;
 	}
 
-	public BlockingQueue<Message> getQueue() {
-		return queue;
-	}
-
 	public String getSubscribeReq() {
 		WsData wsData = new WsData(this.symbol, WebSocketOperation.SUBSCRIBE,
 				(Object[]) ConnectorUtils.getNonAuthenticatedTopicsList());
@@ -116,12 +146,53 @@ public class BmInstrument {
 		this.tickSize = tickSize;
 	}
 
-	public OrderBook getOrderBook() {
+	public BmOrderBook getOrderBook() {
 		return orderBook;
 	}
 
+	public void setOrderBook(BmOrderBook orderBook) {
+		this.orderBook = orderBook;
+	}
+
 	public void clearOrderBook() {
-		this.orderBook = new OrderBook();
+		orderBook.clear();
+		if (depthConflator != null) {
+			depthConflator.clear();
+		}
+	}
+
+	/**
+	 * Lets go of the market data state once the instrument is unsubscribed,
+	 * it is created again by the next snapshot. Called by the instrument's
+	 * shard thread.
+	 */
+	public synchronized void release() {
+		orderBook.clear();
+		priceIdCodec = null;
+		depthConflator = null;
+		lineArbiter = null;
+		orderBookSnapshotParsed = false;
+	}
+
+	/**
+	 * @return approximate heap bytes held by the market data state, read
+	 *         without locking so it is a gauge only
+	 */
+	public long getFootprint() {
+		long bytes = orderBook.getFootprint();
+		PriceIdCodec priceIdCodec = this.priceIdCodec;
+		DepthConflator depthConflator = this.depthConflator;
+		LineArbiter lineArbiter = this.lineArbiter;
+		if (priceIdCodec != null) {
+			bytes += priceIdCodec.getFootprint();
+		}
+		if (depthConflator != null) {
+			bytes += depthConflator.getFootprint();
+		}
+		if (lineArbiter != null) {
+			bytes += lineArbiter.getFootprint();
+		}
+		return bytes;
 	}
 
 	public boolean isSubscribed() {
@@ -132,12 +203,33 @@ public class BmInstrument {
 		this.isSubscribed = isSubscribed;
 	}
 
-	public HashMap<Long, Integer> getPricesMap() {
-		return pricesMap;
+	public PriceIdCodec getPriceIdCodec() {
+		// created lazily because Gson does not call the constructor
+		if (priceIdCodec == null) {
+			priceIdCodec = new PriceIdCodec(symbol);
+		}
+		return priceIdCodec;
+	}
+
+	public DepthConflator getDepthConflator() {
+		if (depthConflator == null) {
+			depthConflator = new DepthConflator(symbol);
+		}
+		return depthConflator;
+	}
+
+	public synchronized LineArbiter getLineArbiter() {
+		if (lineArbiter == null) {
+			lineArbiter = new LineArbiter(symbol);
+		}
+		return lineArbiter;
 	}
 
-	public Integer getPriceFromMap(long id) {
-		return pricesMap.get(id);
+	public synchronized BookIntegrity getBookIntegrity() {
+		if (bookIntegrity == null) {
+			bookIntegrity = new BookIntegrity(symbol);
+		}
+		return bookIntegrity;
 	}
 
 	public boolean isFirstSnapshotParsed() {
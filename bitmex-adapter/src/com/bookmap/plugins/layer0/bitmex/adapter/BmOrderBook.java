@@ -0,0 +1,331 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Order book of one instrument. Levels close to the best price live in a
+ * tick-indexed long[] window per side so an update is an array write, a
+ * bitset of occupied ticks finds the next best level a word at a time. Levels
+ * that fall outside the window (deep outliers) spill into a TreeMap. The
+ * window follows the market: it is moved when the best price leaves it.
+ *
+ * Both sides are stored by rank, rank is the intPrice for asks and -intPrice
+ * for bids, so for both sides the best level is the one with the lowest rank.
+ *
+ * Updates must come from one thread (the instrument's shard), best prices can
+ * be read from any thread.
+ **/
+public class BmOrderBook {
+
+	public interface LevelVisitor {
+		void onLevel(boolean isBid, int intPrice, long size);
+	}
+
+	private static final int NONE = Integer.MAX_VALUE;
+
+	private final Side asks;
+	private final Side bids;
+
+	public BmOrderBook() {
+		this(ConnectorUtils.ORDER_BOOK_WINDOW_TICKS);
+	}
+
+	public BmOrderBook(int windowTicks) {
+		asks = new Side(false, windowTicks);
+		bids = new Side(true, windowTicks);
+	}
+
+	/**
+	 * @return previous size of the level
+	 */
+	public long onUpdate(boolean isBid, int intPrice, long size) {
+		return isBid ? bids.set(-intPrice, size) : asks.set(intPrice, size);
+	}
+
+	public long getSize(boolean isBid, int intPrice) {
+		return isBid ? bids.get(-intPrice) : asks.get(intPrice);
+	}
+
+	/**
+	 * @return best ask or Integer.MAX_VALUE if there are no asks
+	 */
+	public int getBestAskPriceOrNone() {
+		int rank = asks.bestRank;
+		return rank == NONE ? Integer.MAX_VALUE : rank;
+	}
+
+	/**
+	 * @return best bid or Integer.MIN_VALUE if there are no bids
+	 */
+	public int getBestBidPriceOrNone() {
+		int rank = bids.bestRank;
+		return rank == NONE ? Integer.MIN_VALUE : -rank;
+	}
+
+	public int getLevelsCount(boolean isBid) {
+		return isBid ? bids.count : asks.count;
+	}
+
+	public boolean isEmpty() {
+		return asks.count == 0 && bids.count == 0;
+	}
+
+	/**
+	 * Visits the levels of one side from the best to the worst one
+	 */
+	public void forEachLevel(boolean isBid, LevelVisitor visitor) {
+		(isBid ? bids : asks).forEach(visitor);
+	}
+
+	/**
+	 * Empties the book and gives the windows back, they are allocated again
+	 * by the first level
+	 */
+	public void clear() {
+		asks.clear();
+		bids.clear();
+	}
+
+	/**
+	 * @return approximate heap bytes held, a spilled level (a TreeMap entry
+	 *         with its boxed key and value) is taken as 80 bytes
+	 */
+	public long getFootprint() {
+		return 64 + asks.getFootprint() + bids.getFootprint();
+	}
+
+	private static class Side {
+		private final boolean isBid;
+		private final int windowTicks;
+		private final TreeMap<Integer, Long> spill = new TreeMap<>();
+		// null while the side is empty
+		private long[] window;
+		// a bit per window index, set if the level is there
+		private long[] occupied;
+		private int base;
+		private int windowCount;
+		// lowest occupied window index or windowTicks if the window is empty
+		private int windowBest;
+		private int count;
+		private volatile int bestRank = NONE;
+
+		Side(boolean isBid, int windowTicks) {
+			this.isBid = isBid;
+			// whole words of the bitset
+			this.windowTicks = Math.max(64, (windowTicks + 63) & ~63);
+			this.windowBest = this.windowTicks;
+		}
+
+		long get(int rank) {
+			int index = rank - base;
+			if (index >= 0 && index < windowTicks) {
+				return window == null ? 0 : window[index];
+			}
+			Long size = spill.get(rank);
+			return size == null ? 0 : size;
+		}
+
+		long set(int rank, long size) {
+			if (count == 0) {
+				if (size == 0) {
+					return 0;
+				}
+				// the first level decides where the window is
+				moveWindow(rank);
+			} else if (size != 0 && rank < base && rank < bestRank) {
+				// the market has moved below the window
+				moveWindow(rank);
+			}
+
+			long previous;
+			int index = rank - base;
+			if (index >= 0 && index < windowTicks) {
+				previous = window[index];
+				window[index] = size;
+				if (previous == 0 && size != 0) {
+					occupied[index >>> 6] |= 1L << index;
+					windowCount++;
+					count++;
+					if (index < windowBest) {
+						windowBest = index;
+					}
+				} else if (previous != 0 && size == 0) {
+					occupied[index >>> 6] &= ~(1L << index);
+					windowCount--;
+					count--;
+					if (index == windowBest) {
+						windowBest = nextWindowLevel(index + 1);
+					}
+				}
+			} else {
+				Long old = size == 0 ? spill.remove(rank) : spill.put(rank, size);
+				previous = old == null ? 0 : old;
+				if (previous == 0 && size != 0) {
+					count++;
+				} else if (previous != 0 && size == 0) {
+					count--;
+				}
+			}
+
+			updateBest();
+			return previous;
+		}
+
+		private void updateBest() {
+			int rank = windowBest < windowTicks ? base + windowBest : NONE;
+			if (!spill.isEmpty()) {
+				rank = Math.min(rank, spill.firstKey());
+			}
+			if (rank != NONE && (windowCount == 0 ? !spill.isEmpty() : windowBest > windowTicks / 2)) {
+				// the market has moved up or only outliers are left
+				moveWindow(rank);
+			}
+			bestRank = rank;
+		}
+
+		/**
+		 * @return lowest occupied index from the given one or windowTicks, a
+		 *         word of the bitset is checked at a time
+		 */
+		private int nextWindowLevel(int from) {
+			if (windowCount == 0 || from >= windowTicks) {
+				return windowTicks;
+			}
+			int word = from >>> 6;
+			long bits = occupied[word] & (-1L << from);
+			while (bits == 0) {
+				if (++word == occupied.length) {
+					return windowTicks;
+				}
+				bits = occupied[word];
+			}
+			return (word << 6) + Long.numberOfTrailingZeros(bits);
+		}
+
+		/**
+		 * Puts the window so that bestRank is close to its start, levels
+		 * leaving the window go to the spill map and spilled levels falling
+		 * into it are taken back. Happens only when the market moves far. The
+		 * arrays are shifted in place, they are allocated only when the side
+		 * gets its first level.
+		 */
+		private void moveWindow(int bestRank) {
+			int newBase = bestRank - windowTicks / 8;
+			if (window == null) {
+				window = new long[windowTicks];
+				occupied = new long[windowTicks >>> 6];
+				base = newBase;
+			}
+			long shift = (long) newBase - base;
+			if (shift == 0 && windowCount > 0) {
+				return;
+			}
+
+			if (shift != 0) {
+				// levels leaving the window
+				int from = shift > 0 ? 0 : (int) Math.max(0, windowTicks + shift);
+				int to = shift > 0 ? (int) Math.min(windowTicks, shift) : windowTicks;
+				for (int i = nextWindowLevel(from); i < to; i = nextWindowLevel(i + 1)) {
+					spill.put(base + i, window[i]);
+					windowCount--;
+				}
+				if (Math.abs(shift) >= windowTicks) {
+					Arrays.fill(window, 0);
+					Arrays.fill(occupied, 0);
+				} else if (shift > 0) {
+					int n = (int) shift;
+					System.arraycopy(window, n, window, 0, windowTicks - n);
+					Arrays.fill(window, windowTicks - n, windowTicks, 0);
+					shiftDown(occupied, n);
+				} else {
+					int n = (int) -shift;
+					System.arraycopy(window, 0, window, n, windowTicks - n);
+					Arrays.fill(window, 0, n, 0);
+					shiftUp(occupied, n);
+				}
+				base = newBase;
+			}
+
+			SortedMap<Integer, Long> comingBack = spill.subMap(newBase, (int) Math.min(Integer.MAX_VALUE,
+					(long) newBase + windowTicks));
+			for (Iterator<Map.Entry<Integer, Long>> it = comingBack.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Integer, Long> entry = it.next();
+				int index = entry.getKey() - newBase;
+				window[index] = entry.getValue();
+				occupied[index >>> 6] |= 1L << index;
+				windowCount++;
+				it.remove();
+			}
+			windowBest = nextWindowLevel(0);
+		}
+
+		/**
+		 * Bit i + n goes to bit i
+		 */
+		private static void shiftDown(long[] bits, int n) {
+			int words = n >>> 6;
+			int shift = n & 63;
+			for (int i = 0; i < bits.length; i++) {
+				int src = i + words;
+				long low = src < bits.length ? bits[src] >>> shift : 0;
+				long high = shift != 0 && src + 1 < bits.length ? bits[src + 1] << (64 - shift) : 0;
+				bits[i] = low | high;
+			}
+		}
+
+		/**
+		 * Bit i goes to bit i + n
+		 */
+		private static void shiftUp(long[] bits, int n) {
+			int words = n >>> 6;
+			int shift = n & 63;
+			for (int i = bits.length - 1; i >= 0; i--) {
+				int src = i - words;
+				long high = src >= 0 ? bits[src] << shift : 0;
+				long low = shift != 0 && src - 1 >= 0 ? bits[src - 1] >>> (64 - shift) : 0;
+				bits[i] = high | low;
+			}
+		}
+
+		void forEach(LevelVisitor visitor) {
+			Iterator<Map.Entry<Integer, Long>> spilled = spill.entrySet().iterator();
+			Map.Entry<Integer, Long> nextSpilled = spilled.hasNext() ? spilled.next() : null;
+
+			// spilled levels are either below or above the window
+			for (int i = windowBest; i < windowTicks; i = nextWindowLevel(i + 1)) {
+				int rank = base + i;
+				while (nextSpilled != null && nextSpilled.getKey() < rank) {
+					visit(visitor, nextSpilled.getKey(), nextSpilled.getValue());
+					nextSpilled = spilled.hasNext() ? spilled.next() : null;
+				}
+				visit(visitor, rank, window[i]);
+			}
+			while (nextSpilled != null) {
+				visit(visitor, nextSpilled.getKey(), nextSpilled.getValue());
+				nextSpilled = spilled.hasNext() ? spilled.next() : null;
+			}
+		}
+
+		private void visit(LevelVisitor visitor, int rank, long size) {
+			visitor.onLevel(isBid, isBid ? -rank : rank, size);
+		}
+
+		long getFootprint() {
+			return 64 + (window == null ? 0 : 32 + windowTicks * 8L + windowTicks / 8) + spill.size() * 80L;
+		}
+
+		void clear() {
+			window = null;
+			occupied = null;
+			spill.clear();
+			windowCount = 0;
+			windowBest = windowTicks;
+			count = 0;
+			bestRank = NONE;
+		}
+	}
+}
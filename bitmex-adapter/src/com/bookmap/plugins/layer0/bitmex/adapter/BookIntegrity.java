@@ -0,0 +1,166 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.concurrent.TimeUnit;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * Watches the order book of one instrument for things that cannot happen in
+ * a correct book: an update or a delete of a level we do not have (unknown
+ * id), a negative size, or best bid at or above best ask for several
+ * messages in a row. When one is found the instrument is quarantined, its
+ * updates are dropped until a fresh snapshot replaces the book, which is
+ * requested by a resync of this instrument only.
+ *
+ * Checks run on the instrument's shard thread, a lost message quarantines
+ * it from the I/O thread, counters may be read from any thread.
+ **/
+public class BookIntegrity {
+
+	public static enum Fault {
+		// DROPPED means an update was lost before it was parsed, see
+		// IngestPipeline.OverflowPolicy
+		UNKNOWN_ID, NEGATIVE_SIZE, CROSSED, FAILED, DROPPED;
+	}
+
+	private final String symbol;
+	private final int crossedMessagesLimit;
+	private final long resyncIntervalNanos;
+
+	private volatile boolean isQuarantined = false;
+	private int crossedMessages = 0;
+	private long lastResyncNanos;
+
+	// counters, written by the shard thread
+	private final long[] faults = new long[Fault.values().length];
+	private volatile long resyncs;
+	private volatile long droppedMessages;
+
+	public BookIntegrity(String symbol) {
+		this(symbol, ConnectorUtils.BOOK_CROSSED_MESSAGES, ConnectorUtils.BOOK_RESYNC_INTERVAL_MS);
+	}
+
+	public BookIntegrity(String symbol, int crossedMessagesLimit, long resyncIntervalMs) {
+		this.symbol = symbol;
+		this.crossedMessagesLimit = Math.max(1, crossedMessagesLimit);
+		this.resyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(resyncIntervalMs);
+		this.lastResyncNanos = System.nanoTime() - resyncIntervalNanos;
+	}
+
+	public boolean isQuarantined() {
+		return isQuarantined;
+	}
+
+	/**
+	 * Called for each message that comes while quarantined
+	 */
+	public void onDropped() {
+		droppedMessages++;
+	}
+
+	/**
+	 * Called before an insert or an update is applied
+	 *
+	 * @return false if the size is negative
+	 */
+	public boolean checkSize(long size) {
+		if (size < 0) {
+			quarantine(Fault.NEGATIVE_SIZE, "size " + size);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Called after a level is applied
+	 *
+	 * @param previousSize
+	 *            size the level had before
+	 * @return false if an update or a delete came for a level we did not have
+	 */
+	public boolean checkPreviousSize(int action, long previousSize) {
+		if (action != OrderBookL2Decoder.ACTION_INSERT && previousSize == 0) {
+			quarantine(Fault.UNKNOWN_ID, action == OrderBookL2Decoder.ACTION_DELETE ? "delete" : "update");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Called after a message is applied. A book may look crossed for a moment
+	 * as BitMEX sends a trade's changes in more than one message, so only a
+	 * book that stays crossed is a fault.
+	 *
+	 * @return false if the book is crossed for too long
+	 */
+	public boolean checkBook(BmOrderBook book) {
+		int bestBid = book.getBestBidPriceOrNone();
+		int bestAsk = book.getBestAskPriceOrNone();
+		if (bestBid == Integer.MIN_VALUE || bestAsk == Integer.MAX_VALUE || bestBid < bestAsk) {
+			crossedMessages = 0;
+			return true;
+		}
+		if (++crossedMessages < crossedMessagesLimit) {
+			return true;
+		}
+		quarantine(Fault.CROSSED, "bid " + bestBid + " ask " + bestAsk);
+		return false;
+	}
+
+	/**
+	 * @return true if the instrument was not quarantined yet
+	 */
+	public synchronized boolean quarantine(Fault fault, String detail) {
+		faults[fault.ordinal()]++;
+		if (isQuarantined) {
+			return false;
+		}
+		isQuarantined = true;
+		Log.info("[bitmex] BookIntegrity quarantine: " + symbol + " " + fault + " (" + detail
+				+ "), updates are dropped until a new snapshot");
+		return true;
+	}
+
+	/**
+	 * A new snapshot has replaced the book
+	 */
+	public synchronized void onSnapshot() {
+		crossedMessages = 0;
+		if (isQuarantined) {
+			isQuarantined = false;
+			Log.info("[bitmex] BookIntegrity onSnapshot: " + symbol + " released after " + droppedMessages
+					+ " dropped messages in total");
+		}
+	}
+
+	/**
+	 * Counts a resync and tells when it may be made, so a book that keeps
+	 * breaking is not resubscribed more often than once an interval
+	 *
+	 * @return delay of the resync in nanoseconds
+	 */
+	public synchronized long scheduleResync(long nowNanos) {
+		resyncs++;
+		long at = Math.max(nowNanos, lastResyncNanos + resyncIntervalNanos);
+		lastResyncNanos = at;
+		return at - nowNanos;
+	}
+
+	public long getResyncs() {
+		return resyncs;
+	}
+
+	public long getFaults(Fault fault) {
+		return faults[fault.ordinal()];
+	}
+
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[").append(symbol).append(" resyncs=").append(resyncs);
+		for (Fault fault : Fault.values()) {
+			sb.append(", ").append(fault).append("=").append(faults[fault.ordinal()]);
+		}
+		sb.append(", dropped=").append(droppedMessages).append(", quarantined=").append(isQuarantined).append("]");
+		return sb.toString();
+	}
+}
@@ -2,11 +2,10 @@ package com.bookmap.plugins.layer0.bitmex.adapter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
@@ -15,37 +14,55 @@ import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketFrame;
-import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 import org.eclipse.jetty.websocket.api.extensions.Frame;
 import org.eclipse.jetty.websocket.api.extensions.Frame.Type;
 
 import velox.api.layer1.common.Log;
 
-@WebSocket(maxTextMessageSize = 1048576, maxBinaryMessageSize = 1048576)
+// text messages are read frame by frame (see onFrame) so there is no limit
+@WebSocket(maxTextMessageSize = Integer.MAX_VALUE, maxBinaryMessageSize = 1048576)
 public class ClientSocket {
 
+	private final String name;
+	private volatile int line;
 	private Session session;
 	private CountDownLatch openingLatch = new CountDownLatch(1);
-	private CountDownLatch closingLatch = new CountDownLatch(1);
-	private JsonParser parser;
-	private boolean isConnectionPossiblyLost = false;
+	private final CountDownLatch closingLatch;
+	private Consumer<ClientSocket> closeListener;
+	private IngestPipeline pipeline;
+	private FrameRecorder recorder;
+	private int connectionId;
+	private final LivenessMonitor liveness = new LivenessMonitor();
 	private long lastMessageTime = System.currentTimeMillis();
-	ScheduledExecutorService snapshotTimer;
+	private volatile WheelTimer.Timeout pingTimeout;
+	// fragmented text message being received
+	private FrameReader activeStream;
+	private MeteredDeflateExtension.Metrics deflateMetrics;
 
-	@OnWebSocketClose
-	public void OnClose(int i, String str) {
-		// Log.info("ClientSocket: CLOSED WITH STATUS " + i + " FOR " + str + "
-		// REASON");
-		closingLatch.countDown();
+	public ClientSocket() {
+		this("websocket", 0, new CountDownLatch(1));
 	}
 
-	@OnWebSocketMessage
-	public void onText(Session session, String message) throws IOException {
+	/**
+	 * @param line
+	 *            see LineArbiter, 0 unless market data is redundant
+	 * @param closingLatch
+	 *            may be shared by several sockets to wait for any of them
+	 */
+	public ClientSocket(String name, int line, CountDownLatch closingLatch) {
+		this.name = name;
+		this.line = line;
+		this.closingLatch = closingLatch;
+	}
 
-		if (session != null && message != null) {
-			parser.parse(message);
-			lastMessageTime = System.currentTimeMillis();
+	@OnWebSocketClose
+	public void OnClose(int i, String str) {
+		Log.info("[bitmex] ClientSocket OnClose: " + name + " closed with status " + i);
+		failActiveStream("closed");
+		closingLatch.countDown();
+		if (closeListener != null) {
+			closeListener.accept(this);
 		}
 	}
 
@@ -56,53 +73,32 @@ public class ClientSocket {
 		launchPingTimer();
 	}
 
+	/**
+	 * Checks the connection several times per ping interval, see
+	 * LivenessMonitor
+	 */
 	private void launchPingTimer() {
-		class CustomThreadFactory implements ThreadFactory {
-			public Thread newThread(Runnable r) {
-				return new Thread(r, "-> BmConnector: pingTimer");
-			}
-		}
-
-		long maxDelay = 5000;
-		ScheduledExecutorService snapshotTimer = Executors.newSingleThreadScheduledExecutor(new CustomThreadFactory());
-		this.snapshotTimer = snapshotTimer;
-
-		snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+		long checkPeriodNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(ConnectorUtils.TIMER_TICK_MS),
+				liveness.getIntervalNanos() / 4);
+		pingTimeout = WheelTimer.shared().scheduleWithFixedDelay(new Runnable() {
 			@Override
 			public void run() {
-				// if the last message was > [5s + time to launch this timer]
-				// seconds ago
-				if (System.currentTimeMillis() - getLastMessageTime() > maxDelay + 500) {
-					Log.info("[bitmex] ClientSocket launchPingTimer: last message UTC=" + getLastMessageTime());
-					// and if this happened before
-					if (isConnectionPossiblyLost()) {
-						Log.info("[bitmex] ClientSocket launchPingTimer: connection lost UTC="
-								+ System.currentTimeMillis());
-						close();
-						snapshotTimer.shutdown();
-					} else {// but this did not happen before
-						sendPing();
-						setConnectionPossiblyLost(true);
-						Log.info("[bitmex] ClientSocket launchPingTimer: connection possibly lost UTC="
-								+ System.currentTimeMillis());
-					}
-				} else {
-					// the last message was <5 seconds ago, everything is OK
-					// Log.info("[bitmex] ClientSocket launchPingTimer:
-					// connection alive UTC=" + System.currentTimeMillis() );
-					setConnectionPossiblyLost(false);
+				long now = System.nanoTime();
+				switch (liveness.check(now)) {
+				case DEAD:
+					Log.info("[bitmex] ClientSocket launchPingTimer: " + name + " connection lost, silent for "
+							+ TimeUnit.NANOSECONDS.toMillis(liveness.getSilenceNanos(now)) + " ms "
+							+ liveness.getStats());
+					close();
+					break;
+				case PING:
+					sendPing();
+					break;
+				default:
+					break;
 				}
 			}
-			// sleep maxDelay=5 seconds
-		}, 0, maxDelay, TimeUnit.MILLISECONDS);
-	}
-
-	public boolean isConnectionPossiblyLost() {
-		return isConnectionPossiblyLost;
-	}
-
-	public void setConnectionPossiblyLost(boolean isConnectionPossiblyLost) {
-		this.isConnectionPossiblyLost = isConnectionPossiblyLost;
+		}, 0, checkPeriodNanos, TimeUnit.NANOSECONDS);
 	}
 
 	public void sendMessage(String str) {
@@ -132,13 +128,17 @@ public class ClientSocket {
 
 	@OnWebSocketError
 	public void onError(Session session, Throwable error) throws Exception {
+		failActiveStream(error.toString());
 		close();
 		Log.info("[bitmex] ClientSockeT onError: " + error.toString());
 		error.printStackTrace();
 	}
 
 	public void close() {
-		snapshotTimer.shutdownNow();
+		WheelTimer.Timeout pingTimeout = this.pingTimeout;
+		if (pingTimeout != null) {
+			pingTimeout.cancel();
+		}
 
 		if (session != null) {
 			try {
@@ -148,18 +148,64 @@ public class ClientSocket {
 				e.printStackTrace();
 			}
 		}
-		Log.info("[bitmex] ClientSockeT close(): socket interrupted");
+		Log.info("[bitmex] ClientSockeT close(): socket " + name + " interrupted");
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return null unless permessage-deflate has been negotiated
+	 */
+	public MeteredDeflateExtension.Metrics getDeflateMetrics() {
+		return deflateMetrics;
+	}
+
+	/**
+	 * @param closeListener
+	 *            called by the websocket thread once the socket is closed
+	 */
+	public void setCloseListener(Consumer<ClientSocket> closeListener) {
+		this.closeListener = closeListener;
+	}
+
+	/**
+	 * A standby socket takes the line of the socket it replaces
+	 */
+	public void setLine(int line) {
+		this.line = line;
+	}
+
+	public boolean isOpen() {
+		Session session = this.session;
+		return session != null && session.isOpen() && closingLatch.getCount() > 0;
+	}
+
+	public void setPipeline(IngestPipeline pipeline) {
+		this.pipeline = pipeline;
 	}
 
-	public void setParser(JsonParser parser) {
-		this.parser = parser;
+	/**
+	 * @param connectionId
+	 *            tells the socket's frames from others in the journal
+	 */
+	public void setRecorder(FrameRecorder recorder, int connectionId) {
+		this.recorder = recorder;
+		this.connectionId = connectionId;
+	}
+
+	/**
+	 * @return ping round trip times and timeouts
+	 */
+	public LivenessMonitor getLiveness() {
+		return liveness;
 	}
 
 	public void sendPing() {
 		try {
 			RemoteEndpoint remote = session.getRemote();
-			String data = "ping";
-			ByteBuffer payload = ByteBuffer.wrap(data.getBytes());
+			ByteBuffer payload = liveness.createPing(System.nanoTime());
 			remote.sendPing(payload);
 			// Log.info("[bitmex] ClientSocket sendPing: PING");
 		} catch (WebSocketException e) {
@@ -172,11 +218,85 @@ public class ClientSocket {
 		}
 	}
 
+	/**
+	 * Text messages are taken frame by frame. A short single-frame message
+	 * becomes a String, anything longer or fragmented is handed to the parser
+	 * as a FrameReader right away and continuation frames are appended to it
+	 * as they come. Parsing is done by the pipeline's own thread.
+	 */
 	@OnWebSocketFrame
 	public void onFrame(Frame frame) {
-		if (frame.getType() == Type.PONG) {
+		Type type = frame.getType();
+		if (deflateMetrics == null && ConnectorUtils.WS_DEFLATE) {
+			deflateMetrics = MeteredDeflateExtension.current();
+		}
+
+		if (type == Type.TEXT) {
 			lastMessageTime = System.currentTimeMillis();
-			// Log.info("[bitmex] ClientSocket onFrame: PONG");
+			long receiveTime = System.nanoTime();
+			liveness.onFrame(receiveTime);
+			ByteBuffer payload = getPayload(frame);
+			record(frame, payload, receiveTime);
+			if (frame.isFin() && payload.remaining() <= ConnectorUtils.WS_STREAM_THRESHOLD) {
+				pipeline.publish(toString(payload), receiveTime, line);
+			} else {
+				FrameReader stream = new FrameReader(payload);
+				if (frame.isFin()) {
+					stream.finish();
+				} else {
+					activeStream = stream;
+				}
+				pipeline.publish(stream, receiveTime, line);
+			}
+		} else if (type == Type.CONTINUATION) {
+			lastMessageTime = System.currentTimeMillis();
+			long receiveTime = System.nanoTime();
+			liveness.onFrame(receiveTime);
+			ByteBuffer payload = getPayload(frame);
+			record(frame, payload, receiveTime);
+			FrameReader stream = activeStream;
+			if (stream != null) {
+				stream.append(payload);
+				if (frame.isFin()) {
+					stream.finish();
+					activeStream = null;
+				}
+			}
+		} else if (type == Type.PONG) {
+			lastMessageTime = System.currentTimeMillis();
+			liveness.onPong(frame.hasPayload() ? frame.getPayload() : null, System.nanoTime());
+		}
+	}
+
+	private void record(Frame frame, ByteBuffer payload, long receiveTime) {
+		if (recorder != null && recorder.isEnabled()) {
+			byte flags = frame.isFin() ? FrameRecorder.FLAG_FIN : 0;
+			if (frame.getType() == Type.CONTINUATION) {
+				flags |= FrameRecorder.FLAG_CONTINUATION;
+			}
+			recorder.record(payload, receiveTime, connectionId, line, flags);
+		}
+	}
+
+	private static ByteBuffer getPayload(Frame frame) {
+		return frame.hasPayload() ? frame.getPayload() : ByteBuffer.allocate(0);
+	}
+
+	private static String toString(ByteBuffer payload) {
+		if (payload.hasArray()) {
+			return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+					StandardCharsets.UTF_8);
+		}
+		byte[] bytes = new byte[payload.remaining()];
+		payload.slice().get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void failActiveStream(String reason) {
+		FrameReader stream = activeStream;
+		if (stream != null) {
+			activeStream = null;
+			stream.fail(reason);
 		}
 	}
 
@@ -8,6 +8,7 @@ import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.EnumMap;
@@ -24,6 +25,8 @@ import org.apache.commons.codec.binary.Hex;
 
 import com.google.gson.reflect.TypeToken;
 
+import velox.api.layer1.common.Log;
+
 public class ConnectorUtils {
 	public static final String bitmex_Wss = "wss://www.bitmex.com/realtime";
 	public static final String bitmex_restApi = "https://www.bitmex.com";
@@ -39,6 +42,128 @@ public class ConnectorUtils {
 
 	public static final long REQUEST_TIME_TO_LIVE = TimeUnit.SECONDS.convert(1, TimeUnit.HOURS);// 1 hour
 
+	/*
+	 * Tuning parameters can be overridden with -Dbitmex.xxx=value system
+	 * properties, otherwise the defaults below are used
+	 */
+	// must be a power of 2
+	public static final int INGEST_BUFFER_SIZE = Integer.getInteger("bitmex.ingest.bufferSize", 8192);
+	public static final IngestPipeline.WaitStrategyType INGEST_WAIT_STRATEGY = getEnum("bitmex.ingest.waitStrategy",
+			IngestPipeline.WaitStrategyType.BLOCKING);
+	// market data only, private topics always wait, a dropped orderBookL2
+	// frame gets its instrument resynced (see BookIntegrity)
+	public static final IngestPipeline.OverflowPolicy INGEST_OVERFLOW_POLICY = getEnum(
+			"bitmex.ingest.overflowPolicy", IngestPipeline.OverflowPolicy.BLOCK);
+	// orderBookL2 levels per instrument whose price cannot be computed from the id
+	public static final int PRICE_ID_EXCEPTIONS_LIMIT = Integer.getInteger("bitmex.priceId.exceptionsLimit", 1 << 20);
+	// ticks around the best price kept in the order book arrays, see BmOrderBook
+	public static final int ORDER_BOOK_WINDOW_TICKS = Integer.getInteger("bitmex.orderBook.windowTicks", 4096);
+	// websocket connections the subscribed instruments are spread over, private
+	// topics always get one more connection of their own
+	public static final int MARKET_DATA_CONNECTIONS = Math.max(1, Integer.getInteger("bitmex.marketData.connections", 2));
+	// every instrument is subscribed through two lines, the first copy of an
+	// update wins, see LineArbiter
+	public static final boolean MARKET_DATA_REDUNDANT = Boolean.getBoolean("bitmex.marketData.redundant");
+	// updates one line may be ahead of the other before the other is demoted
+	public static final int ARBITER_PENDING_LIMIT = Integer.getInteger("bitmex.arbiter.pendingLimit", 1 << 16);
+	// text frames longer than this are parsed while the rest of the message
+	// is still arriving instead of being turned into one String
+	public static final int WS_STREAM_THRESHOLD = Integer.getInteger("bitmex.ws.streamThreshold", 65536);
+	// asks BitMEX for permessage-deflate, less bandwidth for more CPU
+	public static final boolean WS_DEFLATE = Boolean.getBoolean("bitmex.ws.deflate");
+	// frames older than this switch depth conflation on (see DepthConflator), 0 means never
+	public static final long CONFLATION_LAG_MS = Long.getLong("bitmex.conflation.lagMs", 0);
+	// market data processing threads, instruments are spread over them by
+	// symbol. 0 parses market data on the ingest thread with everything else,
+	// so Bookmap gets every callback from one thread in arrival order. With
+	// shards the data listeners are called from several threads at once and
+	// a trade may come after the fill it caused, only for listeners that
+	// allow both
+	public static final int MARKET_DATA_SHARDS = Math.max(0, Integer.getInteger("bitmex.marketData.shards", 0));
+	// raw frames are journaled into this directory (see FrameRecorder), not set means no journal
+	public static final String JOURNAL_DIR = System.getProperty("bitmex.journal.dir");
+	public static final int JOURNAL_SEGMENT_MB = Integer.getInteger("bitmex.journal.segmentMb", 64);
+	// must be a power of 2
+	public static final int JOURNAL_BUFFER_SIZE = Integer.getInteger("bitmex.journal.bufferSize", 4096);
+	// DROP loses journal frames only, they wait while Bookmap raw data
+	// recording is on
+	public static final IngestPipeline.OverflowPolicy JOURNAL_OVERFLOW_POLICY = getEnum(
+			"bitmex.journal.overflowPolicy", IngestPipeline.OverflowPolicy.DROP);
+	// resolution of the shared timer (see WheelTimer) and threads running its tasks
+	public static final long TIMER_TICK_MS = Long.getLong("bitmex.timer.tickMs", 100);
+	public static final int TIMER_WORKERS = Integer.getInteger("bitmex.timer.workers", 2);
+	// websocket pings, the connection is given up when a ping is not answered
+	// and nothing else comes for the 99th percentile of round trips times the
+	// multiplier, but not sooner than the min and not later than the max timeout
+	public static final long PING_INTERVAL_MS = Long.getLong("bitmex.ping.intervalMs", 1000);
+	public static final long PING_MIN_TIMEOUT_MS = Long.getLong("bitmex.ping.minTimeoutMs", 1500);
+	public static final long PING_MAX_TIMEOUT_MS = Long.getLong("bitmex.ping.maxTimeoutMs", 10000);
+	public static final double PING_RTT_MULTIPLIER = getDouble("bitmex.ping.rttMultiplier", 8);
+	// a spare market data socket and a spare authenticated private socket are
+	// kept open and take over at once when a socket dies
+	public static final boolean WS_STANDBY = Boolean.getBoolean("bitmex.ws.standby");
+	// REST request limits of signed and unsigned requests used until BitMEX
+	// tells the real ones (see RateGovernor), tokens only cancels may take,
+	// and how many background queries may run at once
+	public static final int REST_REQUESTS_PER_MINUTE = Integer.getInteger("bitmex.rest.requestsPerMinute", 60);
+	public static final int REST_PUBLIC_REQUESTS_PER_MINUTE = Integer
+			.getInteger("bitmex.rest.publicRequestsPerMinute", 30);
+	public static final int REST_BURST = Integer.getInteger("bitmex.rest.burst", 10);
+	public static final int REST_CANCEL_RESERVE = Integer.getInteger("bitmex.rest.cancelReserve", 3);
+	public static final int REST_CONCURRENCY = Integer.getInteger("bitmex.rest.concurrency", 4);
+	// keep-alive connections to the REST API (see RestClient), how long a
+	// request may take and how long an unused connection is kept
+	public static final int REST_CONNECTIONS = Integer.getInteger("bitmex.rest.connections", 8);
+	public static final long REST_TIMEOUT_MS = Long.getLong("bitmex.rest.timeoutMs", 10000);
+	public static final long REST_IDLE_TIMEOUT_MS = Long.getLong("bitmex.rest.idleTimeoutMs", 55000);
+	// threads handling the answers to order requests, see TradeConnector.requireAsync
+	public static final int ORDER_THREADS = Integer.getInteger("bitmex.order.threads", 2);
+	// single new orders of one symbol are sent at once, those made while one
+	// is in flight go together when it is done, as single cancels do. A
+	// window (opt-in) holds every new order for that long to collect more.
+	// Batches have at most this many orders (see OrderBatcher), 1 turns it off
+	public static final long ORDER_BATCH_WINDOW_MS = Long.getLong("bitmex.order.batchWindowMs", 0);
+	public static final int ORDER_BATCH_MAX = Integer.getInteger("bitmex.order.batchMax", 10);
+	// a book crossed for this many messages in a row is resynced (see
+	// BookIntegrity), an instrument is not resynced more often than the interval
+	public static final int BOOK_CROSSED_MESSAGES = Integer.getInteger("bitmex.book.crossedMessages", 3);
+	public static final long BOOK_RESYNC_INTERVAL_MS = Long.getLong("bitmex.book.resyncIntervalMs", 5000);
+	// how often the heap held by each instrument is logged, 0 means only on reconnects
+	public static final long FOOTPRINT_LOG_INTERVAL_MS = Long.getLong("bitmex.footprint.logIntervalMs", 600000);
+
+	/**
+	 * A mistyped value is logged and the default is used, an exception here
+	 * would leave the class unusable
+	 */
+	private static <E extends Enum<E>> E getEnum(String property, E defaultValue) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Log.info("[bitmex] ConnectorUtils: " + property + "=" + value + " is not one of "
+					+ Arrays.toString(defaultValue.getDeclaringClass().getEnumConstants()) + ", " + defaultValue
+					+ " is used");
+			return defaultValue;
+		}
+	}
+
+	private static double getDouble(String property, double defaultValue) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			Log.info("[bitmex] ConnectorUtils: " + property + "=" + value + " is not a number, " + defaultValue
+					+ " is used");
+			return defaultValue;
+		}
+	}
+
 	public static enum WebSocketOperation {
 		AUTHKEY, SUBSCRIBE, UNSUBSCRIBE;
 	}
@@ -0,0 +1,104 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.Arrays;
+
+/**
+ * Levels of one orderBookL2 message collected while the message is applied
+ * to the book. Once the whole message is in the book the batch is arranged
+ * and delivered in one go: removals first, then the best bid and the best
+ * ask, then everything else. So a listener never sees a crossed book or a far
+ * level taken for the best one. Sizes are taken from the book after the
+ * message is applied, so a level touched twice shows its final size.
+ *
+ * Reused from message to message by the shard thread.
+ **/
+public class DepthBatch {
+
+	private String symbol;
+	private int count;
+	private boolean[] sides = new boolean[64];
+	private int[] prices = new int[64];
+	private long[] sizes = new long[64];
+	private int[] order = new int[64];
+
+	public void clear(String symbol) {
+		this.symbol = symbol;
+		this.count = 0;
+	}
+
+	/**
+	 * @return approximate heap bytes held
+	 */
+	public long getFootprint() {
+		return 80 + sides.length * 17L;
+	}
+
+	public void add(boolean isBid, int intPrice, long size) {
+		if (count == sides.length) {
+			int newLength = count * 2;
+			sides = Arrays.copyOf(sides, newLength);
+			prices = Arrays.copyOf(prices, newLength);
+			sizes = Arrays.copyOf(sizes, newLength);
+			order = Arrays.copyOf(order, newLength);
+		}
+		sides[count] = isBid;
+		prices[count] = intPrice;
+		sizes[count] = size;
+		order[count] = count;
+		count++;
+	}
+
+	/**
+	 * Takes final sizes from the book and puts the levels into delivery order
+	 */
+	public void arrange(BmOrderBook book) {
+		int bestBid = book.getBestBidPriceOrNone();
+		int bestAsk = book.getBestAskPriceOrNone();
+		int n = 0;
+
+		for (int i = 0; i < count; i++) {
+			sizes[i] = book.getSize(sides[i], prices[i]);
+			if (sizes[i] == 0) {
+				order[n++] = i;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (sizes[i] != 0 && isBest(i, bestBid, bestAsk)) {
+				order[n++] = i;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (sizes[i] != 0 && !isBest(i, bestBid, bestAsk)) {
+				order[n++] = i;
+			}
+		}
+	}
+
+	private boolean isBest(int i, int bestBid, int bestAsk) {
+		return prices[i] == (sides[i] ? bestBid : bestAsk);
+	}
+
+	public String getSymbol() {
+		return symbol;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * The following getters take the position in delivery order, that is in
+	 * the order of adding until the batch is arranged
+	 */
+	public boolean isBid(int position) {
+		return sides[order[position]];
+	}
+
+	public int getIntPrice(int position) {
+		return prices[order[position]];
+	}
+
+	public long getSize(int position) {
+		return sizes[order[position]];
+	}
+}
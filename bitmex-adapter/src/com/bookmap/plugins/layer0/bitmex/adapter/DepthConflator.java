@@ -0,0 +1,115 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * Conflation of one instrument's depth for the time the consumer is behind.
+ * It is switched on when frames are older than the configured lag by the
+ * time they are parsed and switched off when the lag is below half of it.
+ * While it is on, changed levels are only remembered, the book already
+ * holds their sizes. They are delivered as one batch when the shard has
+ * drained its queue, so a level changed many times goes out once with its
+ * latest size.
+ *
+ * Used by the instrument's shard thread only.
+ **/
+public class DepthConflator {
+
+	public interface DepthListener {
+		void onDepth(DepthBatch batch);
+	}
+
+	private final String symbol;
+	private final LongIntHashMap pending = new LongIntHashMap(256);
+	private final DepthBatch batch = new DepthBatch();
+	private boolean isActive = false;
+
+	private long activations;
+	private long coalesced;
+	private long delivered;
+
+	public DepthConflator(String symbol) {
+		this.symbol = symbol;
+		batch.clear(symbol);
+	}
+
+	/**
+	 * @param ageNanos
+	 *            time since the frame being processed was received
+	 * @return true if conflation is on
+	 */
+	public boolean onLag(long ageNanos) {
+		long thresholdNanos = ConnectorUtils.CONFLATION_LAG_MS * 1000000L;
+		if (!isActive && ageNanos > thresholdNanos) {
+			isActive = true;
+			activations++;
+			Log.info("[bitmex] DepthConflator " + symbol + ": on, lag " + ageNanos / 1000000 + " ms " + getStats());
+		} else if (isActive && ageNanos < thresholdNanos / 2) {
+			isActive = false;
+			Log.info("[bitmex] DepthConflator " + symbol + ": off " + getStats());
+		}
+		return isActive;
+	}
+
+	public boolean isActive() {
+		return isActive;
+	}
+
+	public boolean hasPending() {
+		return batch.getCount() > 0;
+	}
+
+	public void add(boolean isBid, int intPrice) {
+		long key = ((long) intPrice << 1) | (isBid ? 1 : 0);
+		if (pending.containsKey(key)) {
+			coalesced++;
+			return;
+		}
+		pending.put(key, 0);
+		batch.add(isBid, intPrice, 0);
+	}
+
+	/**
+	 * Delivers the pending levels with their current sizes
+	 */
+	public void flush(BmOrderBook book, DepthListener listener) {
+		if (batch.getCount() == 0) {
+			return;
+		}
+		batch.arrange(book);
+		listener.onDepth(batch);
+		delivered += batch.getCount();
+		clear();
+	}
+
+	/**
+	 * Forgets the pending levels, for example when the book is cleared
+	 */
+	public void clear() {
+		pending.clear();
+		batch.clear(symbol);
+	}
+
+	/**
+	 * @return approximate heap bytes held
+	 */
+	public long getFootprint() {
+		return 64 + pending.getFootprint() + batch.getFootprint();
+	}
+
+	public long getActivations() {
+		return activations;
+	}
+
+	/**
+	 * @return updates that did not reach listeners because a newer one of the
+	 *         same level was pending
+	 */
+	public long getCoalesced() {
+		return coalesced;
+	}
+
+	public String getStats() {
+		return "[activations=" + activations + ", coalesced=" + coalesced + ", delivered=" + delivered + "]";
+	}
+}
@@ -0,0 +1,148 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Text message that is still arriving. The websocket thread appends frame
+ * payloads, the parser thread reads chars as soon as they are there, so a
+ * big snapshot is being parsed while its tail is still on the wire and is
+ * never held as one huge String.
+ **/
+public class FrameReader extends Reader {
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+	// long enough for the preamble of a partial up to its filter
+	private static final int HEAD_LENGTH = 1024;
+
+	private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>();
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final String head;
+	private final CharBuffer chars = CharBuffer.allocate(8192);
+	private ByteBuffer current;
+	private boolean isEndReached = false;
+	private volatile String failure;
+
+	/**
+	 * @param firstPayload
+	 *            payload of the first frame, copied
+	 */
+	public FrameReader(ByteBuffer firstPayload) {
+		ByteBuffer headBytes = firstPayload.slice();
+		if (headBytes.remaining() > HEAD_LENGTH) {
+			headBytes.limit(HEAD_LENGTH);
+		}
+		// a char cut in half at the end only spoils the last char
+		head = StandardCharsets.UTF_8.decode(headBytes).toString();
+		chars.flip();
+		append(firstPayload);
+	}
+
+	/**
+	 * @return beginning of the message, enough to see the table and the
+	 *         symbol, for a partial the one of its filter
+	 */
+	public String getHead() {
+		return head;
+	}
+
+	/**
+	 * Called by the websocket thread, the payload is copied because Jetty
+	 * reuses the buffer
+	 */
+	public void append(ByteBuffer payload) {
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+		copy.put(payload.slice());
+		copy.flip();
+		chunks.add(copy);
+	}
+
+	public void finish() {
+		chunks.add(END);
+	}
+
+	/**
+	 * Wakes the reader up with an exception, for example when the connection
+	 * is lost in the middle of a message
+	 */
+	public void fail(String reason) {
+		failure = reason;
+		chunks.add(END);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (!chars.hasRemaining()) {
+			if (isEndReached || !fill()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, chars.remaining());
+		chars.get(cbuf, off, n);
+		return n;
+	}
+
+	/**
+	 * Decodes what is left of the current chunk or waits for the next one
+	 *
+	 * @return false if the message is over
+	 */
+	private boolean fill() throws IOException {
+		chars.compact();
+		try {
+			while (true) {
+				if (current != null && current.hasRemaining()) {
+					decoder.decode(current, chars, false);
+					if (chars.position() > 0) {
+						return true;
+					}
+					// only a part of a char is left, the rest is in the next chunk
+				}
+
+				ByteBuffer next;
+				try {
+					next = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("[bitmex] FrameReader: interrupted");
+				}
+
+				if (next == END) {
+					isEndReached = true;
+					if (failure != null) {
+						throw new IOException("[bitmex] FrameReader: " + failure);
+					}
+					decoder.decode(current == null ? END : current, chars, true);
+					decoder.flush(chars);
+					return chars.position() > 0;
+				}
+
+				if (current != null && current.hasRemaining()) {
+					ByteBuffer joined = ByteBuffer.allocate(current.remaining() + next.remaining());
+					joined.put(current).put(next);
+					joined.flip();
+					next = joined;
+				}
+				current = next;
+			}
+		} finally {
+			chars.flip();
+		}
+	}
+
+	@Override
+	public void close() {
+		chunks.clear();
+	}
+}
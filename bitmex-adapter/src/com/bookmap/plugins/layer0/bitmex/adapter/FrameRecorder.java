@@ -0,0 +1,359 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+import velox.api.layer1.Layer1ApiAdminListener;
+import velox.api.layer1.common.Log;
+import velox.api.layer1.providers.helper.RawDataHelper;
+
+/**
+ * Records raw websocket frames. The websocket thread only copies the payload
+ * into a slot of a ring buffer, a background thread appends it to the
+ * journal and hands whole messages to Bookmap raw data recording if that is
+ * on. By default a frame that finds the buffer full is dropped and counted,
+ * so a slow disk never holds the websocket thread back, unless raw data
+ * recording is on, which gets every frame as it did before the journal. The
+ * rest of a message whose frame was dropped is dropped as well, and the
+ * next frame of the connection is flagged with FLAG_GAP, so neither the
+ * journal nor raw data recording ever gets a message with a hole in it.
+ *
+ * The journal is a sequence of memory-mapped segment files in the directory
+ * set by bitmex.journal.dir. A segment starts with a header (int magic, int
+ * version, long creation time in epoch millis) followed by records:
+ *
+ * <pre>
+ * int   record size including these 16 bytes, 0 means no more records
+ * long  receive time, epoch nanos
+ * short connection id (see BmConnector)
+ * byte  line (see LineArbiter)
+ * byte  flags, FLAG_FIN, FLAG_CONTINUATION and FLAG_GAP
+ * ...   frame payload, UTF-8
+ * </pre>
+ *
+ * All numbers are little-endian. A record that does not fit into what is
+ * left of a segment goes to the next one.
+ **/
+public class FrameRecorder {
+
+	public static final int MAGIC = 0x314a4d42;// "BMJ1"
+	public static final int VERSION = 1;
+	public static final int SEGMENT_HEADER_SIZE = 16;
+	public static final int RECORD_HEADER_SIZE = 16;
+	public static final byte FLAG_FIN = 1;
+	public static final byte FLAG_CONTINUATION = 2;
+	// frames of the connection were dropped before this one, a message left
+	// without its last frame will not get it
+	public static final byte FLAG_GAP = 4;
+
+	private static final int SLOT_SIZE = 1024;
+	// slots grown by a big frame are given back after it is written
+	private static final int SLOT_SIZE_KEPT = 65536;
+
+	private static class FrameSlot {
+		private byte[] bytes = new byte[SLOT_SIZE];
+		private int length;
+		private long receiveTime;
+		private short connectionId;
+		private byte line;
+		private byte flags;
+		// the last event, the writer closes the segment
+		private boolean isClose;
+	}
+
+	private final File directory;
+	private final long segmentSize;
+	private final IngestPipeline.OverflowPolicy overflowPolicy;
+	private final List<Layer1ApiAdminListener> rawDataListeners;
+	private final Disruptor<FrameSlot> disruptor;
+	private final RingBuffer<FrameSlot> ringBuffer;
+
+	// nanoTime to epoch nanos
+	private final long baseEpochNanos = System.currentTimeMillis() * 1000000L;
+	private final long baseNanoTime = System.nanoTime();
+
+	// written by the writer thread only
+	private MappedByteBuffer segment;
+	private int segmentIndex;
+	private final String segmentPrefix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+	private final Map<Integer, ByteArrayOutputStream> rawDataMessages = new HashMap<>();
+	private volatile boolean isJournalOn;
+	// connections that lost a frame, written by their websocket threads
+	private final Set<Integer> gapConnections = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong recordedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile long journalBytes;
+
+	public FrameRecorder(List<Layer1ApiAdminListener> rawDataListeners) {
+		this(ConnectorUtils.JOURNAL_DIR == null ? null : new File(ConnectorUtils.JOURNAL_DIR),
+				ConnectorUtils.JOURNAL_SEGMENT_MB * 1024L * 1024L, ConnectorUtils.JOURNAL_BUFFER_SIZE,
+				ConnectorUtils.JOURNAL_OVERFLOW_POLICY, rawDataListeners);
+	}
+
+	/**
+	 * @param directory
+	 *            where segments are created, null to give frames to raw data
+	 *            recording only
+	 */
+	@SuppressWarnings("unchecked")
+	public FrameRecorder(File directory, long segmentSize, int bufferSize,
+			IngestPipeline.OverflowPolicy overflowPolicy, List<Layer1ApiAdminListener> rawDataListeners) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.overflowPolicy = overflowPolicy;
+		this.rawDataListeners = rawDataListeners;
+		this.isJournalOn = directory != null;
+
+		class CustomThreadFactory implements ThreadFactory {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "-> BmConnector: frameRecorder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+
+		disruptor = new Disruptor<>(FrameSlot::new, bufferSize, new CustomThreadFactory(), ProducerType.MULTI,
+				new BlockingWaitStrategy());
+		disruptor.handleEventsWith(new EventHandler<FrameSlot>() {
+			@Override
+			public void onEvent(FrameSlot slot, long sequence, boolean endOfBatch) {
+				if (slot.isClose) {
+					closeSegment();
+					return;
+				}
+				write(slot);
+				if (slot.bytes.length > SLOT_SIZE_KEPT) {
+					slot.bytes = new byte[SLOT_SIZE];
+				}
+			}
+		});
+		disruptor.setDefaultExceptionHandler(new ExceptionHandler<FrameSlot>() {
+			@Override
+			public void handleEventException(Throwable ex, long sequence, FrameSlot slot) {
+				Log.info("[bitmex] FrameRecorder: failed to record a frame");
+				ex.printStackTrace();
+			}
+
+			@Override
+			public void handleOnStartException(Throwable ex) {
+				Log.info("[bitmex] FrameRecorder: start failed");
+				ex.printStackTrace();
+			}
+
+			@Override
+			public void handleOnShutdownException(Throwable ex) {
+				Log.info("[bitmex] FrameRecorder: shutdown failed");
+				ex.printStackTrace();
+			}
+		});
+		ringBuffer = disruptor.start();
+		Log.info("[bitmex] FrameRecorder: started, journal=" + (directory == null ? "off" : directory)
+				+ " segmentSize=" + segmentSize + " bufferSize=" + bufferSize + " overflowPolicy=" + overflowPolicy);
+	}
+
+	/**
+	 * Checked by the websocket thread before recording a frame
+	 */
+	public boolean isEnabled() {
+		return isJournalOn || RawDataHelper.isRawDataRecordingEnabled();
+	}
+
+	/**
+	 * Called by the websocket thread, copies the payload without moving its
+	 * position
+	 *
+	 * @param receiveTime
+	 *            System.nanoTime() when the frame was received
+	 */
+	public void record(ByteBuffer payload, long receiveTime, int connectionId, int line, byte flags) {
+		if (!gapConnections.isEmpty() && gapConnections.contains(connectionId)) {
+			if ((flags & FLAG_CONTINUATION) != 0) {
+				// the rest of a broken message
+				droppedCount.incrementAndGet();
+				return;
+			}
+			gapConnections.remove(connectionId);
+			flags |= FLAG_GAP;
+		}
+
+		long sequence;
+		try {
+			sequence = ringBuffer.tryNext();
+		} catch (InsufficientCapacityException e) {
+			if (overflowPolicy == IngestPipeline.OverflowPolicy.DROP && !RawDataHelper.isRawDataRecordingEnabled()) {
+				droppedCount.incrementAndGet();
+				gapConnections.add(connectionId);
+				return;
+			}
+			sequence = ringBuffer.next();
+		}
+
+		try {
+			FrameSlot slot = ringBuffer.get(sequence);
+			int length = payload.remaining();
+			if (slot.bytes.length < length) {
+				slot.bytes = new byte[length];
+			}
+			payload.slice().get(slot.bytes, 0, length);
+			slot.length = length;
+			slot.receiveTime = receiveTime;
+			slot.connectionId = (short) connectionId;
+			slot.line = (byte) line;
+			slot.flags = flags;
+			slot.isClose = false;
+		} finally {
+			ringBuffer.publish(sequence);
+		}
+		recordedCount.incrementAndGet();
+	}
+
+	private void write(FrameSlot slot) {
+		if (isJournalOn) {
+			try {
+				writeToJournal(slot);
+			} catch (IOException e) {
+				// the connection is fine without the journal
+				isJournalOn = false;
+				Log.info("[bitmex] FrameRecorder write: journal is off, " + e.toString());
+				e.printStackTrace();
+			}
+		}
+		if (RawDataHelper.isRawDataRecordingEnabled()) {
+			sendRawData(slot);
+		} else {
+			rawDataMessages.clear();
+		}
+	}
+
+	private void writeToJournal(FrameSlot slot) throws IOException {
+		int size = RECORD_HEADER_SIZE + slot.length;
+		if (segment == null || segment.remaining() < size) {
+			openSegment(size);
+		}
+		segment.putInt(size);
+		segment.putLong(baseEpochNanos + slot.receiveTime - baseNanoTime);
+		segment.putShort(slot.connectionId);
+		segment.put(slot.line);
+		segment.put(slot.flags);
+		segment.put(slot.bytes, 0, slot.length);
+		journalBytes += size;
+	}
+
+	/**
+	 * @param recordSize
+	 *            a bigger segment is made for a record that would not fit
+	 *            into an empty one
+	 */
+	private void openSegment(int recordSize) throws IOException {
+		closeSegment();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		File file = new File(directory, "bitmex-" + segmentPrefix + "-" + String.format("%04d", segmentIndex++)
+				+ ".journal");
+		long size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize);
+		// the mapping outlives the file handle
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		segment.order(ByteOrder.LITTLE_ENDIAN);
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+		segment.putLong(System.currentTimeMillis());
+		Log.info("[bitmex] FrameRecorder openSegment: " + file + " size=" + size);
+	}
+
+	private void closeSegment() {
+		if (segment != null) {
+			// the rest of the segment is zeros, that is the end mark
+			segment.force();
+			segment = null;
+		}
+	}
+
+	/**
+	 * Whole messages are given to raw data recording, fragments are
+	 * collected per connection until the last one. A message whose first
+	 * fragment is missing is left out.
+	 */
+	private void sendRawData(FrameSlot slot) {
+		boolean isFin = (slot.flags & FLAG_FIN) != 0;
+		boolean isContinuation = (slot.flags & FLAG_CONTINUATION) != 0;
+		Integer connectionId = Integer.valueOf(slot.connectionId);
+
+		if (!isContinuation) {
+			if (!rawDataMessages.isEmpty()) {
+				// a message still being collected has lost its end
+				rawDataMessages.remove(connectionId);
+			}
+			if (isFin) {
+				RawDataHelper.sendRawData(new String(slot.bytes, 0, slot.length, StandardCharsets.UTF_8),
+						rawDataListeners);
+				return;
+			}
+		}
+
+		ByteArrayOutputStream message = rawDataMessages.get(connectionId);
+		if (!isContinuation) {
+			message = new ByteArrayOutputStream(Math.max(32, slot.length * 2));
+			rawDataMessages.put(connectionId, message);
+		} else if (message == null) {
+			return;
+		}
+		message.write(slot.bytes, 0, slot.length);
+		if (isFin) {
+			rawDataMessages.remove(connectionId);
+			RawDataHelper.sendRawData(new String(message.toByteArray(), StandardCharsets.UTF_8), rawDataListeners);
+		}
+	}
+
+	/**
+	 * Writes what is in the buffer, has the writer close the segment and
+	 * stops it
+	 */
+	public void close() {
+		long sequence = ringBuffer.next();
+		ringBuffer.get(sequence).isClose = true;
+		ringBuffer.publish(sequence);
+		disruptor.shutdown();
+		Log.info("[bitmex] FrameRecorder close: " + getStats());
+	}
+
+	public long getRecordedCount() {
+		return recordedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public String getStats() {
+		return "[recorded=" + getRecordedCount() + ", dropped=" + getDroppedCount() + ", journalBytes="
+				+ journalBytes + ", segments=" + segmentIndex + "]";
+	}
+}
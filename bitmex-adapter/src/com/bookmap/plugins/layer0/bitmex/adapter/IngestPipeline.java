@@ -0,0 +1,269 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * Bounded ring buffer between the websocket I/O thread and the parser. The
+ * I/O thread only puts the frame into the buffer, a dedicated consumer thread
+ * takes it from there and hands it to the FrameHandler.
+ **/
+public class IngestPipeline {
+
+	public static enum WaitStrategyType {
+		BLOCKING, SLEEPING, YIELDING, BUSY_SPIN;
+	}
+
+	/**
+	 * What the producer does when the buffer is full. BLOCK makes the I/O
+	 * thread wait for the consumer (backpressure goes back to the socket),
+	 * DROP throws the frame away and tells the drop listener.
+	 **/
+	public static enum OverflowPolicy {
+		BLOCK, DROP;
+	}
+
+	public static class FrameEvent {
+		private String message;
+		private FrameReader stream;
+		private long receiveTime;
+		private int line;
+
+		/**
+		 * @return the message or null if it is a stream
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return a message still being received or null
+		 */
+		public FrameReader getStream() {
+			return stream;
+		}
+
+		/**
+		 * @return line (see LineArbiter) of the socket the frame came from
+		 */
+		public int getLine() {
+			return line;
+		}
+
+		/**
+		 * @return System.nanoTime() when the frame was put into the buffer
+		 */
+		public long getReceiveTime() {
+			return receiveTime;
+		}
+	}
+
+	public interface FrameHandler {
+		void onFrame(FrameEvent event, boolean endOfBatch);
+	}
+
+	private final String name;
+	private final Disruptor<FrameEvent> disruptor;
+	private final RingBuffer<FrameEvent> ringBuffer;
+	private final OverflowPolicy overflowPolicy;
+	private final Runnable failureListener;
+	// called by the I/O thread with a dropped frame
+	private volatile Consumer<String> dropListener;
+
+	private final AtomicLong publishedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong backpressureCount = new AtomicLong();
+	private volatile long maxDepth = 0;
+
+	public IngestPipeline(String name, FrameHandler handler, Runnable failureListener) {
+		this(name, handler, failureListener, ConnectorUtils.INGEST_BUFFER_SIZE,
+				ConnectorUtils.INGEST_WAIT_STRATEGY, ConnectorUtils.INGEST_OVERFLOW_POLICY);
+	}
+
+	@SuppressWarnings("unchecked")
+	public IngestPipeline(String name, FrameHandler handler, Runnable failureListener, int bufferSize,
+			WaitStrategyType waitStrategyType, OverflowPolicy overflowPolicy) {
+		this.name = name;
+		this.overflowPolicy = overflowPolicy;
+		this.failureListener = failureListener;
+
+		class CustomThreadFactory implements ThreadFactory {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "-> BmConnector: " + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+
+		disruptor = new Disruptor<>(FrameEvent::new, bufferSize, new CustomThreadFactory(), ProducerType.MULTI,
+				createWaitStrategy(waitStrategyType));
+		disruptor.handleEventsWith(new EventHandler<FrameEvent>() {
+			@Override
+			public void onEvent(FrameEvent event, long sequence, boolean endOfBatch) {
+				try {
+					handler.onFrame(event, endOfBatch);
+				} finally {
+					event.message = null;
+					event.stream = null;
+				}
+			}
+		});
+		disruptor.setDefaultExceptionHandler(new ExceptionHandler<FrameEvent>() {
+			@Override
+			public void handleEventException(Throwable ex, long sequence, FrameEvent event) {
+				Log.info("[bitmex] IngestPipeline " + name + ": failed to process a frame");
+				ex.printStackTrace();
+				if (IngestPipeline.this.failureListener != null) {
+					IngestPipeline.this.failureListener.run();
+				}
+			}
+
+			@Override
+			public void handleOnStartException(Throwable ex) {
+				Log.info("[bitmex] IngestPipeline " + name + ": start failed");
+				ex.printStackTrace();
+			}
+
+			@Override
+			public void handleOnShutdownException(Throwable ex) {
+				Log.info("[bitmex] IngestPipeline " + name + ": shutdown failed");
+				ex.printStackTrace();
+			}
+		});
+		ringBuffer = disruptor.start();
+		Log.info("[bitmex] IngestPipeline " + name + ": started, bufferSize=" + bufferSize + " waitStrategy="
+				+ waitStrategyType + " overflowPolicy=" + overflowPolicy);
+	}
+
+	private static WaitStrategy createWaitStrategy(WaitStrategyType type) {
+		switch (type) {
+		case SLEEPING:
+			return new SleepingWaitStrategy();
+		case YIELDING:
+			return new YieldingWaitStrategy();
+		case BUSY_SPIN:
+			return new BusySpinWaitStrategy();
+		default:
+			return new BlockingWaitStrategy();
+		}
+	}
+
+	/**
+	 * Called by the I/O thread. Does nothing but copying the reference into
+	 * the ring buffer unless the buffer is full.
+	 */
+	public void publish(String message) {
+		publish(message, System.nanoTime(), 0);
+	}
+
+	/**
+	 * @param receiveTime
+	 *            System.nanoTime() of the moment the frame was received
+	 * @param line
+	 *            line of the socket the frame came from
+	 */
+	public void publish(String message, long receiveTime, int line) {
+		publish(message, null, receiveTime, line);
+	}
+
+	/**
+	 * Streams are never dropped, they are snapshots as a rule
+	 */
+	public void publish(FrameReader stream, long receiveTime, int line) {
+		publish(null, stream, receiveTime, line);
+	}
+
+	private void publish(String message, FrameReader stream, long receiveTime, int line) {
+		long sequence;
+		try {
+			sequence = ringBuffer.tryNext();
+		} catch (InsufficientCapacityException e) {
+			if (overflowPolicy == OverflowPolicy.DROP && stream == null) {
+				droppedCount.incrementAndGet();
+				Consumer<String> listener = dropListener;
+				if (listener != null) {
+					listener.accept(message);
+				}
+				return;
+			}
+			backpressureCount.incrementAndGet();
+			// waits until the consumer frees a slot
+			sequence = ringBuffer.next();
+		}
+
+		try {
+			FrameEvent event = ringBuffer.get(sequence);
+			event.message = message;
+			event.stream = stream;
+			event.receiveTime = receiveTime;
+			event.line = line;
+		} finally {
+			ringBuffer.publish(sequence);
+		}
+		publishedCount.incrementAndGet();
+
+		long depth = getQueueDepth();
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+	}
+
+	public void setDropListener(Consumer<String> dropListener) {
+		this.dropListener = dropListener;
+	}
+
+	public void halt() {
+		disruptor.halt();
+		Log.info("[bitmex] IngestPipeline " + name + ": halted " + getStats());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return number of frames waiting for the consumer
+	 */
+	public long getQueueDepth() {
+		return ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+	}
+
+	public long getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public long getPublishedCount() {
+		return publishedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return how many times the I/O thread had to wait for a free slot
+	 */
+	public long getBackpressureCount() {
+		return backpressureCount.get();
+	}
+
+	public String getStats() {
+		return "[published=" + getPublishedCount() + ", depth=" + getQueueDepth() + ", maxDepth=" + maxDepth
+				+ ", dropped=" + getDroppedCount() + ", backpressure=" + getBackpressureCount() + "]";
+	}
+}
@@ -0,0 +1,147 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the frames written by FrameRecorder, segment after segment in the
+ * order of their names. The reader is a cursor: next() moves it to the next
+ * record and the getters describe that record.
+ **/
+public class JournalReader implements Closeable {
+
+	private final List<File> segments = new ArrayList<>();
+	private int segmentIndex = 0;
+	private MappedByteBuffer segment;
+
+	private long receiveTime;
+	private int connectionId;
+	private int line;
+	private byte flags;
+	private ByteBuffer payload;
+
+	/**
+	 * @param path
+	 *            a segment or a directory of segments
+	 */
+	public JournalReader(File path) throws IOException {
+		if (path.isDirectory()) {
+			File[] files = path.listFiles((dir, name) -> name.endsWith(".journal"));
+			if (files != null) {
+				Arrays.sort(files);
+				segments.addAll(Arrays.asList(files));
+			}
+		} else if (path.isFile()) {
+			segments.add(path);
+		}
+		if (segments.isEmpty()) {
+			throw new IOException("[bitmex] JournalReader: no segments in " + path);
+		}
+	}
+
+	public List<File> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * @return false when all the segments have been read
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (segment == null) {
+				if (segmentIndex == segments.size()) {
+					return false;
+				}
+				openSegment(segments.get(segmentIndex++));
+			}
+
+			int size = segment.remaining() < 4 ? 0 : segment.getInt();
+			if (size == 0) {
+				segment = null;
+				continue;
+			}
+			if (size < FrameRecorder.RECORD_HEADER_SIZE || size - 4 > segment.remaining()) {
+				throw new IOException("[bitmex] JournalReader: broken record in "
+						+ segments.get(segmentIndex - 1) + " at " + (segment.position() - 4));
+			}
+			receiveTime = segment.getLong();
+			connectionId = segment.getShort();
+			line = segment.get();
+			flags = segment.get();
+
+			int length = size - FrameRecorder.RECORD_HEADER_SIZE;
+			payload = segment.slice();
+			payload.limit(length);
+			segment.position(segment.position() + length);
+			return true;
+		}
+	}
+
+	private void openSegment(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		segment.order(ByteOrder.LITTLE_ENDIAN);
+		if (segment.remaining() < FrameRecorder.SEGMENT_HEADER_SIZE || segment.getInt() != FrameRecorder.MAGIC) {
+			throw new IOException("[bitmex] JournalReader: " + file + " is not a journal segment");
+		}
+		int version = segment.getInt();
+		if (version != FrameRecorder.VERSION) {
+			throw new IOException("[bitmex] JournalReader: " + file + " has unknown version " + version);
+		}
+		// creation time
+		segment.getLong();
+	}
+
+	/**
+	 * @return when the frame was received, epoch nanos
+	 */
+	public long getReceiveTime() {
+		return receiveTime;
+	}
+
+	public int getConnectionId() {
+		return connectionId;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public boolean isFin() {
+		return (flags & FrameRecorder.FLAG_FIN) != 0;
+	}
+
+	public boolean isContinuation() {
+		return (flags & FrameRecorder.FLAG_CONTINUATION) != 0;
+	}
+
+	/**
+	 * @return true if frames of the connection were dropped before this one
+	 */
+	public boolean isGap() {
+		return (flags & FrameRecorder.FLAG_GAP) != 0;
+	}
+
+	/**
+	 * @return the frame payload, valid until the next call of next()
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	@Override
+	public void close() {
+		segment = null;
+		segmentIndex = segments.size();
+	}
+}
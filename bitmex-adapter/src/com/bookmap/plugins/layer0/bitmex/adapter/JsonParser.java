@@ -1,24 +1,29 @@
 package com.bookmap.plugins.layer0.bitmex.adapter;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import com.bookmap.plugins.layer0.bitmex.Provider;
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils.Topic;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import velox.api.layer1.common.Log;
-import velox.api.layer1.layers.utils.OrderBook;
-import velox.api.layer1.providers.helper.RawDataHelper;
 
 public class JsonParser {
 	private Provider provider;
@@ -37,13 +42,49 @@ public class JsonParser {
 
 	public static final Gson gson = new GsonBuilder().create();
 
+	private static final Map<Topic, TypeAdapter<?>> unitAdapters = new EnumMap<>(Topic.class);
+
+	static {
+		for (Map.Entry<Topic, TopicContainer> entry : ConnectorUtils.containers.entrySet()) {
+			unitAdapters.put(entry.getKey(), gson.getAdapter(entry.getValue().clazz));
+		}
+	}
+
 	private Map<String, BmInstrument> activeInstrumentsMap = new HashMap<>();
-	private Set<String> nonInstrumentPartialsParsed = new HashSet<>();
+	// market data is parsed by several shard threads at once
+	private Set<String> nonInstrumentPartialsParsed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private ThreadLocal<OrderBookL2Decoder> orderBookL2Decoders = ThreadLocal.withInitial(OrderBookL2Decoder::new);
+	private ThreadLocal<DepthBatch> depthBatches = ThreadLocal.withInitial(DepthBatch::new);
+	// instruments of this thread with depth waiting in their conflators
+	private ThreadLocal<ArrayList<BmInstrument>> conflatedInstruments = ThreadLocal.withInitial(ArrayList::new);
+	private DepthConflator.DepthListener depthListener = batch -> provider.listenForOrderBookL2(batch);
+	// asked for a fresh snapshot of an instrument whose book went wrong
+	private Consumer<BmInstrument> resyncListener;
 
 	public void setProvider(Provider provider) {
 		this.provider = provider;
 	}
 
+	public void setResyncListener(Consumer<BmInstrument> resyncListener) {
+		this.resyncListener = resyncListener;
+	}
+
+	/**
+	 * Called by the I/O thread when an orderBookL2 message of the symbol has
+	 * been dropped. The book has a hole now, so the updates are dropped until
+	 * a fresh snapshot comes.
+	 */
+	public void onBookMessageLost(String symbol) {
+		BmInstrument instr = activeInstrumentsMap.get(symbol);
+		if (instr == null || !instr.isSubscribed()) {
+			return;
+		}
+		if (instr.getBookIntegrity().quarantine(BookIntegrity.Fault.DROPPED, "message dropped")
+				&& resyncListener != null) {
+			resyncListener.accept(instr);
+		}
+	}
+
 	public void setNonInstrumentPartialsParsed(Set<String> nonInstrumentPartialsParsed) {
 		this.nonInstrumentPartialsParsed = nonInstrumentPartialsParsed;
 	}
@@ -53,221 +94,588 @@ public class JsonParser {
 	}
 
 	public void parse(String str) {
+		parse(str, 0, System.nanoTime());
+	}
+
+	public void parse(IngestPipeline.FrameEvent event) {
+		if (event.getStream() != null) {
+			parse(event.getStream(), event.getLine(), event.getReceiveTime());
+		} else {
+			parse(event.getMessage(), event.getLine(), event.getReceiveTime());
+		}
+	}
 
+	/**
+	 * A message that is still arriving goes straight to the streaming decode,
+	 * OrderBookL2Decoder needs the whole text and is not worth it for big
+	 * messages anyway
+	 */
+	public void parse(FrameReader stream, int line, long receiveTime) {
 		try {
-			// Recording raw data for debugging purpose
-			if (RawDataHelper.isRawDataRecordingEnabled()) {
-				RawDataHelper.sendRawData(str, provider.adminListeners);
-			}
+			decode(new JsonReader(stream), stream.getHead(), line, receiveTime);
+		} catch (Exception e) {
+			throw new RuntimeException("[bitmex] Exception thrown to parser. String starts with: "
+					+ stream.getHead(), e);
+		}
+	}
 
-			// first let's find out what kind of object we have here
-			ResponseByWebSocket responseWs = (ResponseByWebSocket) gson.fromJson(str, ResponseByWebSocket.class);
-			if (responseWs.getTable() == null) {
-				if (responseWs.getInfo() != null) {
-					return;
-				}
+	/**
+	 * @param line
+	 *            line the frame came through, matters only when market data
+	 *            is redundant (see LineArbiter)
+	 * @param receiveTime
+	 *            System.nanoTime() when the frame was received
+	 */
+	public void parse(String str, int line, long receiveTime) {
 
-				if (responseWs.getStatus() != null && responseWs.getStatus() != 200) {
-					Log.info("[bitmex] JsonParser parser: websocket response status = " + responseWs.getError());
-					provider.reportWrongCredentials(responseWs.getError());
-					return;
-				}
+		try {
+			// raw data is recorded by the socket, see FrameRecorder
 
-				if (responseWs.getSuccess() == true && responseWs.getRequest().getOp().equals("authKey")) {
-					provider.getConnector().getWebSocketAuthLatch().countDown();
+			// the most frequent frames are decoded without creating objects
+			OrderBookL2Decoder orderBookL2Decoder = orderBookL2Decoders.get();
+			if (orderBookL2Decoder.decode(str)) {
+				if (nonInstrumentPartialsParsed.contains("orderBookL2")) {
+					processOrderBookL2Levels(orderBookL2Decoder, line, receiveTime);
 				}
+				return;
+			}
 
-				if (responseWs.getSuccess() == true && responseWs.getRequest().getOp().equals("unsubscribe")) {
-					String symbol = responseWs.getUnsubscribeSymbol();
-					if (symbol != null) {
-						Log.info(
-								"[bitmex] JsonParser parser: getting unsbscribed from orderBookL2, symbol = " + symbol);
-						BmInstrument instr = activeInstrumentsMap.get(symbol);
-						instr.clearOrderBook();
-					}
-				}
+			JsonReader reader = new JsonReader(new StringReader(str));
+			decode(reader, str, line, receiveTime);
+		} catch (Exception e) {
+			throw new RuntimeException("[bitmex] Exception thrown to parser. String is: " + str, e);
+		}
+	}
 
-				if (responseWs.getSuccess() == null && responseWs.getError() == null && responseWs.getTable() == null
-						&& responseWs.getInfo() == null) {
-					Log.info("[bitmex] JsonParser parser: parser fails to parse " + str);
-					throw new RuntimeException();
+	/**
+	 * Single pass over the frame. 'table' and 'action' go first in every
+	 * BitMEX data message so by the time 'data' is reached the unit type is
+	 * known and the array is read straight into Unit* objects. Frames without
+	 * 'table' are service messages and are collected into a
+	 * ResponseByWebSocket on the same pass.
+	 **/
+	private void decode(JsonReader reader, String str, int line, long receiveTime) throws IOException {
+		String table = null;
+		String action = null;
+		Topic topic = null;
+		ArrayList<?> units = null;
+		JsonArray earlyData = null;
+		ResponseByWebSocket responseWs = null;
+		// the symbol of a partial, also when its data is empty
+		String filterSymbol = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+
+			if (name.equals("table")) {
+				table = reader.nextString();
+				topic = ConnectorUtils.stringToTopic.get(table);
+			} else if (name.equals("action")) {
+				action = reader.nextString();
+			} else if (name.equals("data")) {
+				if (table == null) {
+					// not expected from BitMEX, but 'data' may come before
+					// 'table' in a valid json so keep it until the end
+					earlyData = gson.fromJson(reader, JsonArray.class);
+				} else if (topic != null) {
+					units = readUnits(reader, topic);
+				} else {
+					reader.skipValue();
 				}
+			} else if (name.equals("success")) {
+				responseWs = responseWs == null ? new ResponseByWebSocket() : responseWs;
+				responseWs.setSuccess(reader.nextBoolean());
+			} else if (name.equals("status")) {
+				responseWs = responseWs == null ? new ResponseByWebSocket() : responseWs;
+				responseWs.setStatus(reader.nextInt());
+			} else if (name.equals("error")) {
+				responseWs = responseWs == null ? new ResponseByWebSocket() : responseWs;
+				responseWs.setError(reader.nextString());
+			} else if (name.equals("info")) {
+				responseWs = responseWs == null ? new ResponseByWebSocket() : responseWs;
+				responseWs.setInfo(reader.nextString());
+			} else if (name.equals("unsubscribe") && reader.peek() == JsonToken.STRING) {
+				responseWs = responseWs == null ? new ResponseByWebSocket() : responseWs;
+				responseWs.setUnsubscribe(reader.nextString());
+			} else if (name.equals("request")) {
+				responseWs = responseWs == null ? new ResponseByWebSocket() : responseWs;
+				responseWs.setRequestOp(readRequestOp(reader));
+			} else if (name.equals("filter")) {
+				filterSymbol = readFilterSymbol(reader);
+			} else {
+				// keys, types, meta etc. are not used
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
 
-				if (responseWs.getSuccess() != null || responseWs.getInfo() != null) {
-					Log.info("[bitmex] JsonParser parser: service message " + str);
-					return;
-				}
+		if (table == null) {
+			processServiceMessage(responseWs == null ? new ResponseByWebSocket() : responseWs, str);
+			return;
+		}
 
-				if (responseWs.getError() != null) {
-					Log.info("[bitmex] JsonParser parser: errro message " + str);
-					BmErrorMessage error = new Gson().fromJson(str, BmErrorMessage.class);
-					Log.info(error.getMessage());
-					return;
-				}
-				return;
+		if (topic == null) {
+			return;
+		}
+
+		if (units == null && earlyData != null) {
+			units = readUnits(earlyData, topic);
+		}
+
+		// skip a messages if it contains empty data
+		if (units == null) {
+			Log.info("[bitmex] JsonParser parser: data == null =>" + str);
+			return;
+		}
+		preprocessMessage(topic, action, units, str, line, receiveTime, filterSymbol);
+	}
+
+	private ArrayList<Object> readUnits(JsonReader reader, Topic topic) throws IOException {
+		TypeAdapter<?> adapter = unitAdapters.get(topic);
+		ArrayList<Object> units = new ArrayList<>();
+
+		reader.beginArray();
+		while (reader.hasNext()) {
+			units.add(adapter.read(reader));
+		}
+		reader.endArray();
+		return units;
+	}
+
+	private ArrayList<Object> readUnits(JsonArray array, Topic topic) {
+		Class<?> clazz = ConnectorUtils.containers.get(topic).clazz;
+		ArrayList<Object> units = new ArrayList<>();
+
+		for (JsonElement element : array) {
+			units.add(gson.fromJson(element, clazz));
+		}
+		return units;
+	}
+
+	private String readRequestOp(JsonReader reader) throws IOException {
+		String op = null;
+
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return null;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("op")) {
+				op = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return op;
+	}
+
+	/**
+	 * @return the symbol of "filter":{"symbol":"XBTUSD",...} or null
+	 */
+	private String readFilterSymbol(JsonReader reader) throws IOException {
+		String symbol = null;
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return null;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("symbol") && reader.peek() == JsonToken.STRING) {
+				symbol = reader.nextString();
+			} else {
+				reader.skipValue();
 			}
+		}
+		reader.endObject();
+		return symbol;
+	}
+
+	private void processServiceMessage(ResponseByWebSocket responseWs, String str) {
+		if (responseWs.getInfo() != null) {
+			return;
+		}
+
+		if (responseWs.getStatus() != null && responseWs.getStatus() != 200) {
+			Log.info("[bitmex] JsonParser parser: websocket response status = " + responseWs.getError());
+			provider.reportWrongCredentials(responseWs.getError());
+			return;
+		}
+
+		if (responseWs.getSuccess() == null && responseWs.getError() == null) {
+			Log.info("[bitmex] JsonParser parser: parser fails to parse " + str);
+			throw new RuntimeException();
+		}
+
+		if (responseWs.getError() != null) {
+			Log.info("[bitmex] JsonParser parser: errro message " + str);
+			Log.info(responseWs.getError());
+			return;
+		}
 
-			// Options 'No object', 'success' and 'error' are already excluded
-			// so only 'message' object (that contains 'data', an array of
-			// objects)
-			// stays
-			Message msg = (Message) gson.fromJson(str, Message.class);
+		if (responseWs.getSuccess() == true && responseWs.getRequest() != null) {
+			String op = responseWs.getRequest().getOp();
 
-			// skip a messages if it contains empty data
-			if (msg.getData() == null) {
-				Log.info("[bitmex] JsonParser parser: data == null =>" + str);
+			if ("authKey".equals(op)) {
+				provider.getConnector().onWebSocketAuthenticated();
 			}
 
-			if (ConnectorUtils.stringToTopic.keySet().contains(msg.getTable())) {
-				Topic Topic = ConnectorUtils.stringToTopic.get(msg.getTable());
-				preprocessMessage(str, Topic);
+			if ("unsubscribe".equals(op)) {
+				String symbol = responseWs.getUnsubscribeSymbol();
+				if (symbol != null) {
+					Log.info(
+							"[bitmex] JsonParser parser: getting unsbscribed from orderBookL2, symbol = " + symbol);
+					BmInstrument instr = activeInstrumentsMap.get(symbol);
+					if (!instr.isSubscribed()) {
+						// for good, nothing is kept for the symbol
+						instr.release();
+					} else if (!instr.getBookIntegrity().isQuarantined()) {
+						// unless it is a resync, then the book stays for
+						// the new snapshot to be reconciled with
+						instr.clearOrderBook();
+					}
+				}
 			}
-		} catch (Exception e) {
-			throw new RuntimeException("[bitmex] Exception thrown to parser. String is: " + str, e);
 		}
+		Log.info("[bitmex] JsonParser parser: service message " + str);
+	}
+
+	/*
+	 * setting missing values for dataunits' fields, resolving intPrices by
+	 * level ids, updating the orderBook This refers to order book updates only
+	 * UnitTrade orders are processed in processTradeMsg method
+	 */
+	private void processOrderMessage(String action, ArrayList<UnitData> units, int line, long receiveTime) {
+		BmInstrument instr = activeInstrumentsMap.get(units.get(0).getSymbol());
+		BmOrderBook book = instr.getOrderBook();
+		BookIntegrity integrity = instr.getBookIntegrity();
+
+		if (integrity.isQuarantined()) {
+			integrity.onDropped();
+			return;
+		}
+		if (ConnectorUtils.MARKET_DATA_REDUNDANT) {
+			LineArbiter arbiter = instr.getLineArbiter();
+			int actionCode = getActionCode(action);
+			units.removeIf(unit -> !arbiter.acceptLevel(line, actionCode, unit.getId(), unit.getSize(), receiveTime));
+			if (units.isEmpty()) {
+				return;
+			}
+		}
+		int applied = processOrderMessage(action, units, instr, book);
+
+		DepthBatch batch = depthBatches.get();
+		batch.clear(instr.getSymbol());
+		for (int i = 0; i < applied; i++) {
+			UnitData unit = units.get(i);
+			batch.add(unit.isBid(), unit.getIntPrice(), unit.getSize());
+		}
+		if (applied > 0) {
+			deliverDepth(instr, batch, receiveTime);
+		}
+		checkIntegrity(instr, book, applied == units.size());
+	}
+
+	private static int getActionCode(String action) {
+		return action.equals("insert") ? OrderBookL2Decoder.ACTION_INSERT
+				: action.equals("delete") ? OrderBookL2Decoder.ACTION_DELETE : OrderBookL2Decoder.ACTION_UPDATE;
 	}
 
 	/**
-	 * data units in the snapshot are sorted from highest price to lowest This
-	 * may result in a huge red bestAsk peak on the screen because for a couple
-	 * of milliseconds the bestAsk is actually the most expensive ask What is
-	 * even worse, to fit this peak to the screen the picture gets zoomed out
-	 * which looks pretty weird To avoid this bestAsk is moved to the beginning
-	 * of the list
-	 **/
-	private ArrayList<UnitData> putBestAskToTheHeadOfList(ArrayList<UnitData> units) {
-		if (units.size() < 2)
-			return units;
+	 * Asks for a fresh snapshot if the message just applied has broken the
+	 * book. The levels applied before the fault have been delivered, so the
+	 * book still matches what Bookmap has been told and the snapshot can be
+	 * reconciled with it.
+	 *
+	 * @param isComplete
+	 *            false if the message has been applied only in part because
+	 *            of a fault
+	 */
+	private void checkIntegrity(BmInstrument instr, BmOrderBook book, boolean isComplete) {
+		if (isComplete && instr.getBookIntegrity().checkBook(book)) {
+			return;
+		}
+		// before the first snapshot the subscription's own one is on its way
+		if (resyncListener != null && instr.isOrderBookSnapshotParsed()) {
+			resyncListener.accept(instr);
+		}
+	}
+
+	/**
+	 * Sends the levels of a message applied to the book, unless the consumer
+	 * is behind. In this case they are left to the instrument's conflator.
+	 */
+	private void deliverDepth(BmInstrument instr, DepthBatch batch, long receiveTime) {
+		BmOrderBook book = instr.getOrderBook();
 
-		int firstAskIndex = 0;
+		if (ConnectorUtils.CONFLATION_LAG_MS > 0) {
+			DepthConflator conflator = instr.getDepthConflator();
+			boolean wasActive = conflator.isActive();
 
-		for (int i = 0; i < units.size(); i++) {
-			if (units.get(i + 1).isBid()) {
-				firstAskIndex = i;
-				break;
+			if (conflator.onLag(System.nanoTime() - receiveTime)) {
+				if (!conflator.hasPending()) {
+					conflatedInstruments.get().add(instr);
+				}
+				for (int i = 0, n = batch.getCount(); i < n; i++) {
+					conflator.add(batch.isBid(i), batch.getIntPrice(i));
+				}
+				return;
 			}
+			if (wasActive) {
+				// what is pending goes first
+				conflator.flush(book, depthListener);
+			}
+		}
+		batch.arrange(book);
+		provider.listenForOrderBookL2(batch);
+	}
+
+	/**
+	 * Delivers the depth conflated by the current thread
+	 */
+	public void flushConflatedDepth() {
+		ArrayList<BmInstrument> instruments = conflatedInstruments.get();
+		if (instruments.isEmpty()) {
+			return;
 		}
-		if (firstAskIndex != 0) {
-			Collections.swap(units, 0, firstAskIndex);
+		for (BmInstrument instr : instruments) {
+			instr.getDepthConflator().flush(instr.getOrderBook(), depthListener);
 		}
-		return units;
+		instruments.clear();
 	}
 
-	/*
-	 * setting missing values for dataunits' fields adding missing prices to
-	 * <id,intPrice> map updating the orderBook This refers to order book
-	 * updates only UnitTrade orders are processed in processTradeMsg method
+	/**
+	 * @return how many units have been applied, fewer than all of them if
+	 *         the book has turned out to be inconsistent (never for a partial)
 	 */
-	private void processOrderMessage(MessageGeneric<UnitData> msg) {
-		BmInstrument instr = activeInstrumentsMap.get(msg.getData().get(0).getSymbol());
-		OrderBook book = instr.getOrderBook();
+	private int processOrderMessage(String action, ArrayList<UnitData> units, BmInstrument instr,
+			BmOrderBook book) {
+		PriceIdCodec codec = instr.getPriceIdCodec();
+		BookIntegrity integrity = instr.getBookIntegrity();
+		boolean isPartial = action.equals("partial");
+		int actionCode = getActionCode(action);
+
+		if (isPartial) {
+			calibratePriceIdCodec(instr, units);
+		}
 
-		for (UnitData unit : msg.getData()) {
+		for (int i = 0, n = units.size(); i < n; i++) {
+			UnitData unit = units.get(i);
 			unit.setBid(unit.getSide().equals("Buy"));
-			HashMap<Long, Integer> pricesMap = instr.getPricesMap();
 			int intPrice;
 
-			if (msg.getAction().equals("delete")) {
-				intPrice = pricesMap.get(unit.getId());
-				unit.setSize(0);
-			} else {
-				if (msg.getAction().equals("update")) {
-					intPrice = pricesMap.get(unit.getId());
-				} else {// action is partial or insert
-					// intPrice = createIntPrice(unit.getPrice(),
-					// instr.getTickSize());
-					intPrice = (int) Math.round(unit.getPrice() / instr.getTickSize());
-					pricesMap.put(unit.getId(), intPrice);
+			if (!isPartial && actionCode != OrderBookL2Decoder.ACTION_DELETE && !integrity.checkSize(unit.getSize())) {
+				return i;
+			}
+			try {
+				if (action.equals("delete")) {
+					intPrice = codec.onDelete(unit.getId());
+					unit.setSize(0);
+				} else {
+					if (action.equals("update")) {
+						intPrice = codec.getIntPrice(unit.getId());
+					} else {// action is partial or insert
+						intPrice = (int) Math.round(unit.getPrice() / instr.getTickSize());
+						codec.onInsert(unit.getId(), intPrice);
+					}
+				}
+			} catch (IllegalStateException e) {
+				if (isPartial) {
+					throw e;
 				}
+				integrity.quarantine(actionCode == OrderBookL2Decoder.ACTION_INSERT ? BookIntegrity.Fault.FAILED
+						: BookIntegrity.Fault.UNKNOWN_ID, e.getMessage());
+				return i;
 			}
 			unit.setIntPrice(intPrice);
-			book.onUpdate(unit.isBid(), intPrice, unit.getSize());
+			long previousSize = book.onUpdate(unit.isBid(), intPrice, unit.getSize());
+			if (!isPartial && !integrity.checkPreviousSize(actionCode, previousSize)) {
+				return i + 1;
+			}
 		}
-	}
-
-	private void processTradeUnit(UnitTrade unit) {
-		unit.setBid(unit.getSide().equals("Buy"));
-		BmInstrument instr = activeInstrumentsMap.get(unit.getSymbol());
-		// int intPrice = createIntPrice(unit.getPrice(), instr.getTickSize());
-		int intPrice = (int) Math.round(unit.getPrice() / instr.getTickSize());
-		unit.setIntPrice(intPrice);
+		return units.size();
 	}
 
 	/**
-	 * resets orderBooks (both for Bookmap and for BmInstrument) after
-	 * disconnect and reconnect For better visualization purposes besAsk and
-	 * bestBid will go last in this method and come first in
-	 * putBestAskToTheHeadOfList method (see the description for
-	 * putBestAskToTheHeadOfList method)
-	 **/
-	private void resetBookMapOrderBook(BmInstrument instr) {
-		// Extracting lists of levels from ask and Bid maps
+	 * The snapshot is put into a new book which is then compared with the one
+	 * we have. Only levels that appeared, disappeared or changed size go to
+	 * Bookmap, so after a reconnect the picture is not wiped and drawn again.
+	 */
+	private void reconcileOrderBook(BmInstrument instr, ArrayList<UnitData> units) {
 		String symbol = instr.getSymbol();
-		ArrayList<UnitData> units = new ArrayList<>();
-
-		TreeMap<Integer, Long> askMap = instr.getOrderBook().getAskMap();
-		ArrayList<Integer> askList = new ArrayList<>(askMap.keySet());
-		Collections.sort(askList, Collections.reverseOrder());
-		int i = askList.size() - 1;
-		int bestAsk = askList.get(i);
-		askList.remove(i);
-
-		for (Integer intPrice : askList) {
-			units.add(new UnitData(symbol, intPrice, false));
+		BmOrderBook oldBook = instr.getOrderBook();
+		BmOrderBook newBook = new BmOrderBook();
+		processOrderMessage("partial", units, instr, newBook);
+		if (ConnectorUtils.CONFLATION_LAG_MS > 0) {
+			// listeners have to know the old book before the difference is sent
+			instr.getDepthConflator().flush(oldBook, depthListener);
 		}
 
-		TreeMap<Integer, Long> bidMap = instr.getOrderBook().getBidMap();
-		ArrayList<Integer> bidList = new ArrayList<>(bidMap.keySet());
-		Collections.sort(bidList);
-		i = bidList.size() - 1;
-		int bestBid = bidList.get(i);
-		bidList.remove(bidList.get(i));
+		DepthBatch batch = depthBatches.get();
+		batch.clear(symbol);
+		BmOrderBook.LevelVisitor removals = (isBid, intPrice, size) -> {
+			if (newBook.getSize(isBid, intPrice) == 0) {
+				batch.add(isBid, intPrice, 0);
+			}
+		};
+		BmOrderBook.LevelVisitor updates = (isBid, intPrice, size) -> {
+			if (oldBook.getSize(isBid, intPrice) != size) {
+				batch.add(isBid, intPrice, size);
+			}
+		};
+		oldBook.forEachLevel(false, removals);
+		oldBook.forEachLevel(true, removals);
+		newBook.forEachLevel(false, updates);
+		newBook.forEachLevel(true, updates);
+
+		instr.setOrderBook(newBook);
+		instr.getBookIntegrity().onSnapshot();
+		batch.arrange(newBook);
+		provider.listenForOrderBookL2(batch);
+		Log.info("[bitmex] JsonParser reconcileOrderBook: " + symbol + " snapshot of " + units.size()
+				+ " levels, " + batch.getCount() + " changes sent");
+	}
 
-		for (Integer intPrice : bidList) {
-			units.add(new UnitData(symbol, intPrice, true));
+	/**
+	 * The id formula is taken from the highest and the lowest level of the
+	 * snapshot. If they do not agree with each other all levels are simply
+	 * remembered by the codec.
+	 */
+	private void calibratePriceIdCodec(BmInstrument instr, ArrayList<UnitData> units) {
+		PriceIdCodec codec = instr.getPriceIdCodec();
+		codec.reset();
+		if (units.size() < 2) {
+			return;
 		}
-
-		units.add(new UnitData(symbol, bestAsk, false));
-		units.add(new UnitData(symbol, bestBid, true));
-
-		MessageGeneric<UnitData> mess = new MessageGeneric<>("orderBookL2", "delete", UnitData.class, units);
-		for (UnitData unit : mess.getData()) {
-			provider.listenForOrderBookL2(unit);
+		UnitData first = units.get(0);
+		UnitData last = units.get(units.size() - 1);
+		int firstIntPrice = (int) Math.round(first.getPrice() / instr.getTickSize());
+		int lastIntPrice = (int) Math.round(last.getPrice() / instr.getTickSize());
+
+		if (!codec.calibrate(first.getId(), firstIntPrice, last.getId(), lastIntPrice)) {
+			Log.info("[bitmex] JsonParser calibratePriceIdCodec: ids of " + instr.getSymbol()
+					+ " do not follow the price formula, every level will be remembered");
+			return;
+		}
+		// two levels always fit, the formula is trusted only if all of them do
+		for (int i = 1, n = units.size() - 1; i < n; i++) {
+			UnitData unit = units.get(i);
+			if (!codec.fits(unit.getId(), (int) Math.round(unit.getPrice() / instr.getTickSize()))) {
+				codec.reset();
+				Log.info("[bitmex] JsonParser calibratePriceIdCodec: level " + unit.getId() + " of "
+						+ instr.getSymbol() + " does not follow the price formula, every level will be remembered");
+				return;
+			}
 		}
 	}
 
-	private void resetBmInstrumentOrderBook(BmInstrument instr) {
-		OrderBook book = instr.getOrderBook();
-		TreeMap<Integer, Long> askMap = instr.getOrderBook().getAskMap();
-		Set<Integer> askSet = new HashSet<>(askMap.keySet());
-		for (Integer intPrice : askSet) {
-			book.onUpdate(false, intPrice, 0);
+	/**
+	 * Same as processOrderMessage but for levels decoded by
+	 * OrderBookL2Decoder
+	 */
+	private void processOrderBookL2Levels(OrderBookL2Decoder levels, int line, long receiveTime) {
+		String symbol = levels.getSymbol();
+		BmInstrument instr = activeInstrumentsMap.get(symbol);
+		BmOrderBook book = instr.getOrderBook();
+		BookIntegrity integrity = instr.getBookIntegrity();
+		if (integrity.isQuarantined()) {
+			integrity.onDropped();
+			return;
 		}
+		PriceIdCodec codec = instr.getPriceIdCodec();
+		int action = levels.getAction();
+		LineArbiter arbiter = ConnectorUtils.MARKET_DATA_REDUNDANT ? instr.getLineArbiter() : null;
+		DepthBatch batch = depthBatches.get();
+		batch.clear(symbol);
+		boolean isComplete = true;
+
+		for (int i = 0, n = levels.getCount(); i < n; i++) {
+			if (arbiter != null
+					&& !arbiter.acceptLevel(line, action, levels.getId(i), levels.getSize(i), receiveTime)) {
+				continue;
+			}
+			boolean isBid = levels.isBid(i);
+			long size = levels.getSize(i);
+			int intPrice;
 
-		TreeMap<Integer, Long> bidMap = instr.getOrderBook().getAskMap();
-		Set<Integer> bidSet = new HashSet<>(bidMap.keySet());
-		for (Integer intPrice : bidSet) {
-			book.onUpdate(true, intPrice, 0);
+			if (action != OrderBookL2Decoder.ACTION_DELETE && !integrity.checkSize(size)) {
+				isComplete = false;
+				break;
+			}
+			try {
+				if (action == OrderBookL2Decoder.ACTION_INSERT) {
+					intPrice = (int) Math.round(levels.getPrice(i) / instr.getTickSize());
+					codec.onInsert(levels.getId(i), intPrice);
+				} else if (action == OrderBookL2Decoder.ACTION_DELETE) {
+					intPrice = codec.onDelete(levels.getId(i));
+					size = 0;
+				} else {
+					intPrice = codec.getIntPrice(levels.getId(i));
+				}
+			} catch (IllegalStateException e) {
+				integrity.quarantine(action == OrderBookL2Decoder.ACTION_INSERT ? BookIntegrity.Fault.FAILED
+						: BookIntegrity.Fault.UNKNOWN_ID, e.getMessage());
+				isComplete = false;
+				break;
+			}
+			long previousSize = book.onUpdate(isBid, intPrice, size);
+			batch.add(isBid, intPrice, size);
+			if (!integrity.checkPreviousSize(action, previousSize)) {
+				isComplete = false;
+				break;
+			}
 		}
+		boolean isApplied = batch.getCount() > 0;
+		if (isApplied) {
+			deliverDepth(instr, batch, receiveTime);
+		}
+		if (isApplied || !isComplete) {
+			checkIntegrity(instr, book, isComplete);
+		}
+	}
+
+	private void processTradeUnit(UnitTrade unit) {
+		unit.setBid(unit.getSide().equals("Buy"));
+		BmInstrument instr = activeInstrumentsMap.get(unit.getSymbol());
+		// int intPrice = createIntPrice(unit.getPrice(), instr.getTickSize());
+		int intPrice = (int) Math.round(unit.getPrice() / instr.getTickSize());
+		unit.setIntPrice(intPrice);
 	}
 
 	@SuppressWarnings("unchecked")
-	private <T> void preprocessMessage(String str, Topic topic) {
+	/**
+	 * @param filterSymbol
+	 *            symbol of the message's filter, tells whose an empty
+	 *            orderBookL2 partial is
+	 */
+	private <T> void preprocessMessage(Topic topic, String action, ArrayList<T> units, String str, int line,
+			long receiveTime, String filterSymbol) {
 		TopicContainer container = ConnectorUtils.containers.get(topic);
-		Type type = container.unitType;
-		MessageGeneric<T> msg0 = gson.fromJson(str, type);
 
-		if (msg0.getAction().equals("partial")) {
+		if ("partial".equals(action)) {
 			nonInstrumentPartialsParsed.add(container.name);
 			Log.info("[bitmex] JsonParser preprocessMessage: partial acquired for  " + container.name);
 
+			BmInstrument instr = null;
 			if (topic.equals(Topic.ORDERBOOKL2)) {
-				BmInstrument instr = activeInstrumentsMap
-						.get(((MessageGeneric<UnitData>) msg0).getData().get(0).getSymbol());
+				// an empty snapshot has its symbol in the filter only, it
+				// clears the book and ends a quarantine as well
+				String symbol = units.isEmpty() ? filterSymbol : ((UnitData) units.get(0)).getSymbol();
+				instr = symbol == null ? null : activeInstrumentsMap.get(symbol);
+			}
+			if (instr != null) {
+				if (ConnectorUtils.MARKET_DATA_REDUNDANT && !instr.getLineArbiter().acceptSnapshot(line)) {
+					Log.info("[bitmex] JsonParser preprocessMessage: snapshot of line " + line + " skipped for "
+							+ instr.getSymbol());
+					return;
+				}
 				instr.setOrderBookSnapshotParsed(true);
 				Log.info("[bitmex] JsonParser preprocessMessage setOrderBookSnapshotParsed set true for "
 						+ instr.getSymbol());
-				performOrderBookL2SpecificOpSetOne((MessageGeneric<UnitData>) msg0);
+				reconcileOrderBook(instr, (ArrayList<UnitData>) units);
+				return;
 			}
 		}
 
@@ -277,21 +685,24 @@ public class JsonParser {
 				Log.info("[bitmex] JsonParser preprocessMessage: (order)" + str);
 			}
 
-			if (msg0.getData().isEmpty()) {
+			if (units.isEmpty()) {
 				Log.info("[bitmex] JsonParser preprocessMessage: skips data == [] => " + str);
 				return;
 			}
 
-			ArrayList<T> units = (ArrayList<T>) msg0.getData();
-
-			if (topic.equals(Topic.ORDERBOOKL2) && !units.isEmpty()) {
-				performOrderBookL2SpecificOpSetTwo((MessageGeneric<UnitData>) msg0);
+			if (topic.equals(Topic.ORDERBOOKL2)) {
+				// delivered as one batch
+				processOrderMessage(action, (ArrayList<UnitData>) units, line, receiveTime);
+				return;
 			}
 
-			if (!units.isEmpty()) {
-				dispatchRawUnits(units, container.clazz);
+			if (topic.equals(Topic.TRADE) && ConnectorUtils.MARKET_DATA_REDUNDANT) {
+				units.removeIf(unit -> !activeInstrumentsMap.get(((UnitTrade) unit).getSymbol()).getLineArbiter()
+						.acceptTrade(line, ((UnitTrade) unit).getTrdMatchID(), receiveTime));
 			}
 
+			dispatchRawUnits(units, container.clazz);
+
 			if (topic.equals(Topic.EXECUTION)) {
 				Log.info("[bitmex] JsonParser parser: execution => " + str);
 			}
@@ -308,24 +719,6 @@ public class JsonParser {
 		// right at this point.
 	}
 
-	private void performOrderBookL2SpecificOpSetOne(MessageGeneric<UnitData> msg) {
-		BmInstrument instr = activeInstrumentsMap.get(msg.getData().get(0).getSymbol());
-		if (!instr.getOrderBook().getAskMap().isEmpty()) {
-			// orderbook is filled already (after reconnect).
-			// reset the book after reconnect
-			resetBookMapOrderBook(instr);
-			resetBmInstrumentOrderBook(instr);
-		}
-	}
-
-	private void performOrderBookL2SpecificOpSetTwo(MessageGeneric<UnitData> msg) {
-		processOrderMessage(msg);
-
-		if (msg.getAction().equals("partial")) {
-			msg.setData(putBestAskToTheHeadOfList(msg.getData()));
-		}
-	}
-
 	public <T> void dispatchRawUnits(ArrayList<T> units, Class<?> clazz) {
 		for (T unit : units) {
 			if (clazz == UnitWallet.class) {
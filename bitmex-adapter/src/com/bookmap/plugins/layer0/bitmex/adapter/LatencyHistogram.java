@@ -0,0 +1,110 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.Arrays;
+
+/**
+ * Distribution of latencies in nanoseconds. Every power of two is split into
+ * 32 buckets, so a percentile is off by 3% at most. Recording is a shift and
+ * an increment, nothing is allocated.
+ *
+ * Written by one thread, histograms of several threads are merged with
+ * add().
+ **/
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private final long[] counts = new long[(64 - SUB_BITS) * SUB_COUNT];
+	private long count;
+	private long sum;
+	private long max;
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[index(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+	}
+
+	/**
+	 * @return the smallest value that falls into the bucket
+	 */
+	private static long lowestValue(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		return (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+	}
+
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	public void clear() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public long getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            from 0 to 100
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min(lowestValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Percentiles in microseconds
+	 */
+	@Override
+	public String toString() {
+		return "[count=" + count + ", meanUs=" + getMean() / 1000 + ", p50Us=" + getPercentile(50) / 1000
+				+ ", p90Us=" + getPercentile(90) / 1000 + ", p99Us=" + getPercentile(99) / 1000 + ", p99.9Us="
+				+ getPercentile(99.9) / 1000 + ", maxUs=" + max / 1000 + "]";
+	}
+}
@@ -0,0 +1,275 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * Picks the first copy of every market data update of one instrument when
+ * it is subscribed through two lines (two independent websocket sessions).
+ * A book update is identified by action, level id and size, a trade by its
+ * trdMatchID. The copy that comes first is applied and queued as expected
+ * from the other line. Both lines carry the same updates in the same order,
+ * so a lagging line's copy is matched against its queue in that order: a
+ * level going A to B and back to A is two different entries and a late A
+ * can never be applied over B. Entries before the match are updates the
+ * line will never send (they came before its snapshot) and are dropped. A
+ * line that falls further behind than the limit is demoted, its updates
+ * are ignored until the next reset. Only the first snapshot after a
+ * (re)subscription is used.
+ *
+ * Works on the instrument's shard thread, reset can be requested from any
+ * thread.
+ **/
+public class LineArbiter {
+
+	public static final int LINES = 2;
+
+	/**
+	 * Level update keys in arrival order with their arrival times, grows up
+	 * to the pending limit
+	 */
+	private static class KeyQueue {
+		private long[] keys = new long[64];
+		private int[] arrivals = new int[64];
+		private int head;
+		private int size;
+
+		void add(long key, int arrival) {
+			if (size == keys.length) {
+				long[] newKeys = new long[keys.length * 2];
+				int[] newArrivals = new int[keys.length * 2];
+				for (int i = 0; i < size; i++) {
+					newKeys[i] = keys[(head + i) & (keys.length - 1)];
+					newArrivals[i] = arrivals[(head + i) & (keys.length - 1)];
+				}
+				keys = newKeys;
+				arrivals = newArrivals;
+				head = 0;
+			}
+			int tail = (head + size) & (keys.length - 1);
+			keys[tail] = key;
+			arrivals[tail] = arrival;
+			size++;
+		}
+
+		/**
+		 * @return position of the first entry with the key or -1
+		 */
+		int indexOf(long key) {
+			for (int i = 0; i < size; i++) {
+				if (keys[(head + i) & (keys.length - 1)] == key) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Drops the entries up to the position and returns the arrival of
+		 * the one at it
+		 */
+		int removeThrough(int index) {
+			int arrival = arrivals[(head + index) & (keys.length - 1)];
+			head = (head + index + 1) & (keys.length - 1);
+			size -= index + 1;
+			return arrival;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			head = 0;
+			size = 0;
+		}
+
+		long getFootprint() {
+			return 48 + keys.length * 12L;
+		}
+	}
+
+	private final String symbol;
+	// updates expected from a line because the other line has delivered them
+	// already, with the arrival time in microseconds
+	private final KeyQueue[] expected = new KeyQueue[LINES];
+	// lines too far behind, ignored until the next reset
+	private final boolean[] isDemoted = new boolean[LINES];
+	private final LinkedHashMap<String, Long> tradesSeen;
+	private volatile boolean isResetRequested = true;
+	private int snapshotLine = -1;
+
+	// counters, written by the shard thread
+	private final long[] wins = new long[LINES];
+	private final long[] duplicates = new long[LINES];
+	private final long[] lagSumNanos = new long[LINES];
+	private final long[] lagMaxNanos = new long[LINES];
+	private long demotions;
+
+	public LineArbiter(String symbol) {
+		this.symbol = symbol;
+		for (int i = 0; i < LINES; i++) {
+			expected[i] = new KeyQueue();
+		}
+		tradesSeen = new LinkedHashMap<String, Long>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > ConnectorUtils.ARBITER_PENDING_LIMIT;
+			}
+		};
+	}
+
+	/**
+	 * Called when the instrument gets (re)subscribed
+	 */
+	public void requestReset() {
+		isResetRequested = true;
+	}
+
+	private void resetIfRequested() {
+		if (isResetRequested) {
+			isResetRequested = false;
+			snapshotLine = -1;
+			for (int i = 0; i < LINES; i++) {
+				expected[i].clear();
+				isDemoted[i] = false;
+			}
+			tradesSeen.clear();
+		}
+	}
+
+	/**
+	 * @return true if the snapshot has to be applied, that is the first one
+	 *         since the subscription or a new one from the same line
+	 */
+	public boolean acceptSnapshot(int line) {
+		resetIfRequested();
+		if (snapshotLine >= 0 && snapshotLine != line) {
+			return false;
+		}
+		snapshotLine = line;
+		// deltas the other line sent before the snapshot are in it already,
+		// the ones this line sent are still to come from the other line
+		expected[line].clear();
+		return true;
+	}
+
+	/**
+	 * @return true if this copy of the level update has to be applied
+	 */
+	public boolean acceptLevel(int line, int action, long id, long size, long receiveTime) {
+		resetIfRequested();
+		if (isDemoted[line]) {
+			return false;
+		}
+		long key = levelKey(action, id, size);
+		KeyQueue queue = expected[line];
+		int index = queue.size() == 0 ? -1 : queue.indexOf(key);
+
+		if (index >= 0) {
+			countDuplicate(line, queue.removeThrough(index), receiveTime);
+			return false;
+		}
+
+		int otherLine = LINES - 1 - line;
+		if (!isDemoted[otherLine]) {
+			KeyQueue other = expected[otherLine];
+			if (other.size() >= ConnectorUtils.ARBITER_PENDING_LIMIT) {
+				// the other line is dead or far behind, its copies cannot be
+				// told from new updates any more
+				other.clear();
+				isDemoted[otherLine] = true;
+				demotions++;
+				Log.info("[bitmex] LineArbiter acceptLevel: " + symbol + " line " + otherLine
+						+ " is demoted until the next subscription");
+			} else {
+				other.add(key, toMicros(receiveTime));
+			}
+		}
+		wins[line]++;
+		return true;
+	}
+
+	/**
+	 * @return true if this copy of the trade has to be reported
+	 */
+	public boolean acceptTrade(int line, String trdMatchID, long receiveTime) {
+		resetIfRequested();
+		if (trdMatchID == null) {
+			return true;
+		}
+		Long arrival = tradesSeen.remove(trdMatchID);
+		if (arrival != null) {
+			countDuplicate(line, toMicros(arrival), receiveTime);
+			return false;
+		}
+		tradesSeen.put(trdMatchID, receiveTime);
+		wins[line]++;
+		return true;
+	}
+
+	private void countDuplicate(int line, int arrival, long receiveTime) {
+		// ints wrap around but the difference stays right for short lags
+		long lag = (long) (toMicros(receiveTime) - arrival) * 1000;
+		duplicates[line]++;
+		lagSumNanos[line] += lag;
+		if (lag > lagMaxNanos[line]) {
+			lagMaxNanos[line] = lag;
+		}
+	}
+
+	private static int toMicros(long nanos) {
+		return (int) (nanos / 1000);
+	}
+
+	private static long levelKey(int action, long id, long size) {
+		long key = id * 0x9E3779B97F4A7C15L ^ size * 0xC2B2AE3D27D4EB4FL ^ action;
+		return key == Long.MIN_VALUE ? 0 : key;
+	}
+
+	public long getWins(int line) {
+		return wins[line];
+	}
+
+	public long getDuplicates(int line) {
+		return duplicates[line];
+	}
+
+	/**
+	 * @return how much the line's copies were late on average when the other
+	 *         line won
+	 */
+	public long getAverageLagNanos(int line) {
+		return duplicates[line] == 0 ? 0 : lagSumNanos[line] / duplicates[line];
+	}
+
+	public long getMaxLagNanos(int line) {
+		return lagMaxNanos[line];
+	}
+
+	/**
+	 * @return approximate heap bytes held, a remembered trade (its 36 chars
+	 *         trdMatchID and the map entry) is taken as 160 bytes
+	 */
+	public long getFootprint() {
+		long bytes = 128;
+		for (KeyQueue queue : expected) {
+			bytes += queue.getFootprint();
+		}
+		return bytes + tradesSeen.size() * 160L;
+	}
+
+	public String getStats() {
+		StringBuilder sb = new StringBuilder(symbol).append(" [");
+		for (int i = 0; i < LINES; i++) {
+			sb.append("line").append(i).append(": wins=").append(wins[i]).append(" late=").append(duplicates[i])
+					.append(" avgLagUs=").append(getAverageLagNanos(i) / 1000).append(" maxLagUs=")
+					.append(lagMaxNanos[i] / 1000).append(", ");
+		}
+		return sb.append("demotions=").append(demotions).append("]").toString();
+	}
+}
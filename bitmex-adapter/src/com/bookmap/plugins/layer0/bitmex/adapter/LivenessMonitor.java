@@ -0,0 +1,139 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells whether a websocket is alive. A ping carrying its send time is sent
+ * every interval, the PONG gives the round trip time. The connection is
+ * dead when a ping stays unanswered and nothing else comes for longer than
+ * the timeout, which follows the measured round trips: the 99th percentile
+ * times the multiplier, kept between the min and the max timeouts. Until
+ * there are enough round trips measured the max timeout is used.
+ *
+ * check() is called by the timer, the other methods by the websocket thread.
+ **/
+public class LivenessMonitor {
+
+	public static enum Action {
+		NONE, PING, DEAD;
+	}
+
+	private static final int MIN_SAMPLES = 16;
+
+	private final long intervalNanos;
+	private final long minTimeoutNanos;
+	private final long maxTimeoutNanos;
+	private final double rttMultiplier;
+	private final LatencyHistogram rtt = new LatencyHistogram();
+
+	private volatile long lastFrameNanos = System.nanoTime();
+	// send time of the ping waiting for its PONG or 0
+	private volatile long pingSentNanos = 0;
+	private volatile long lastPingNanos = 0;
+	private volatile long pingsSent;
+	private volatile long pongsLost;
+
+	public LivenessMonitor() {
+		this(ConnectorUtils.PING_INTERVAL_MS, ConnectorUtils.PING_MIN_TIMEOUT_MS, ConnectorUtils.PING_MAX_TIMEOUT_MS,
+				ConnectorUtils.PING_RTT_MULTIPLIER);
+	}
+
+	public LivenessMonitor(long intervalMs, long minTimeoutMs, long maxTimeoutMs, double rttMultiplier) {
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+		this.minTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(minTimeoutMs);
+		this.maxTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minTimeoutMs, maxTimeoutMs));
+		this.rttMultiplier = rttMultiplier;
+	}
+
+	public long getIntervalNanos() {
+		return intervalNanos;
+	}
+
+	/**
+	 * Any frame proves the connection is alive
+	 */
+	public void onFrame(long nowNanos) {
+		lastFrameNanos = nowNanos;
+	}
+
+	/**
+	 * @return payload of the next ping
+	 */
+	public ByteBuffer createPing(long nowNanos) {
+		pingSentNanos = nowNanos;
+		lastPingNanos = nowNanos;
+		pingsSent++;
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putLong(0, nowNanos);
+		return payload;
+	}
+
+	public void onPong(ByteBuffer payload, long nowNanos) {
+		lastFrameNanos = nowNanos;
+		if (payload == null || payload.remaining() != 8) {
+			// not one of ours
+			return;
+		}
+		long sentNanos = payload.getLong(payload.position());
+		if (sentNanos != 0 && sentNanos == pingSentNanos) {
+			pingSentNanos = 0;
+			synchronized (rtt) {
+				rtt.record(nowNanos - sentNanos);
+			}
+		}
+	}
+
+	public long getTimeoutNanos() {
+		long p99;
+		synchronized (rtt) {
+			if (rtt.getCount() < MIN_SAMPLES) {
+				return maxTimeoutNanos;
+			}
+			p99 = rtt.getPercentile(99);
+		}
+		long timeout = (long) (p99 * rttMultiplier);
+		return Math.max(minTimeoutNanos, Math.min(maxTimeoutNanos, timeout));
+	}
+
+	public Action check(long nowNanos) {
+		long timeout = getTimeoutNanos();
+		long sent = pingSentNanos;
+
+		if (sent != 0 && nowNanos - sent > timeout) {
+			if (nowNanos - lastFrameNanos > timeout) {
+				return Action.DEAD;
+			}
+			// the PONG is lost but the connection works
+			pongsLost++;
+			return Action.PING;
+		}
+		if (sent == 0 && nowNanos - lastPingNanos >= intervalNanos) {
+			return Action.PING;
+		}
+		return Action.NONE;
+	}
+
+	/**
+	 * @return how long nothing has come
+	 */
+	public long getSilenceNanos(long nowNanos) {
+		return nowNanos - lastFrameNanos;
+	}
+
+	/**
+	 * @return a copy of the round trip times
+	 */
+	public LatencyHistogram getRtt() {
+		LatencyHistogram copy = new LatencyHistogram();
+		synchronized (rtt) {
+			copy.add(rtt);
+		}
+		return copy;
+	}
+
+	public String getStats() {
+		return "[pings=" + pingsSent + ", pongsLost=" + pongsLost + ", timeoutMs="
+				+ TimeUnit.NANOSECONDS.toMillis(getTimeoutNanos()) + ", rtt=" + getRtt() + "]";
+	}
+}
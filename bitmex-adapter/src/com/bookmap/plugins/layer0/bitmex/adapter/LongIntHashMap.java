@@ -0,0 +1,137 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing long->int map without boxing. Long.MIN_VALUE is reserved as
+ * the empty slot marker and cannot be used as a key.
+ **/
+public class LongIntHashMap {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+
+	public LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean containsKey(long key) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				return true;
+			} else if (k == EMPTY) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return the value or missingValue if there is no such key
+	 */
+	public int get(long key, int missingValue) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				return values[i];
+			} else if (k == EMPTY) {
+				return missingValue;
+			}
+		}
+	}
+
+	public void put(long key, int value) {
+		int i = slot(key);
+		while (true) {
+			long k = keys[i];
+			if (k == key) {
+				values[i] = value;
+				return;
+			} else if (k == EMPTY) {
+				break;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+	}
+
+	/**
+	 * @return the removed value or missingValue if there was no such key
+	 */
+	public int remove(long key, int missingValue) {
+		int i = slot(key);
+		while (true) {
+			long k = keys[i];
+			if (k == key) {
+				break;
+			} else if (k == EMPTY) {
+				return missingValue;
+			}
+			i = (i + 1) & mask;
+		}
+		int value = values[i];
+		size--;
+
+		// shifting the following entries back so no tombstones are needed
+		int gap = i;
+		for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = EMPTY;
+		return value;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	/**
+	 * @return approximate heap bytes held, the map does not shrink
+	 */
+	public long getFootprint() {
+		return 48 + keys.length * 12L;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import com.bookmap.plugins.layer0.bitmex.adapter.IngestPipeline.FrameEvent;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * Sits on the ingest thread and spreads orderBookL2 and trade frames over
+ * shard pipelines by symbol. All frames of one symbol always go to the same
+ * shard, so the shard thread owns the instrument's book and keeps the order
+ * of its updates. Everything else (private topics, service messages) is parsed
+ * right on the ingest thread. Without shards market data is parsed there too,
+ * so all Layer1 callbacks come from that one thread in the order the frames
+ * arrived.
+ **/
+public class MarketDataRouter implements IngestPipeline.FrameHandler {
+
+	private static final String ORDERBOOK_PREFIX = "{\"table\":\"orderBookL2\"";
+	private static final String TRADE_PREFIX = "{\"table\":\"trade\"";
+	private static final String SYMBOL_KEY = "\"symbol\":\"";
+	// a partial starts with "types":{"symbol":"symbol",...}, its own symbol
+	// is in the filter, other actions have it in the first row
+	private static final String FILTER_KEY = "\"filter\":{\"symbol\":\"";
+	private static final String DATA_KEY = "\"data\":[";
+	private static final String UNSUBSCRIBE_KEY = "\"unsubscribe\":\"orderBookL2:";
+
+	private final JsonParser parser;
+	private final IngestPipeline[] shards;
+	// receive to processed, written by the shard threads
+	private final LatencyHistogram[] latencies;
+	// market data parsed on the ingest thread when there are no shards
+	private final LatencyHistogram inlineLatency = new LatencyHistogram();
+
+	public MarketDataRouter(JsonParser parser, int shardsCount, Runnable failureListener) {
+		this.parser = parser;
+		this.shards = new IngestPipeline[shardsCount];
+		this.latencies = new LatencyHistogram[shardsCount];
+
+		for (int i = 0; i < shardsCount; i++) {
+			LatencyHistogram latency = new LatencyHistogram();
+			latencies[i] = latency;
+			shards[i] = new IngestPipeline("shard-" + i,
+					(event, endOfBatch) -> {
+						parser.parse(event);
+						latency.record(System.nanoTime() - event.getReceiveTime());
+						if (endOfBatch) {
+							// the queue is drained, a good moment to catch up
+							parser.flushConflatedDepth();
+						}
+					}, failureListener);
+			shards[i].setDropListener(this::onDropped);
+		}
+		Log.info("[bitmex] MarketDataRouter: " + (shardsCount == 0 ? "market data on the ingest thread"
+				: shardsCount + " shards"));
+	}
+
+	@Override
+	public void onFrame(FrameEvent event, boolean endOfBatch) {
+		if (shards.length == 0) {
+			parser.parse(event);
+			inlineLatency.record(System.nanoTime() - event.getReceiveTime());
+			if (endOfBatch) {
+				parser.flushConflatedDepth();
+			}
+			return;
+		}
+
+		FrameReader stream = event.getStream();
+		// the beginning of a stream is enough to route it
+		String message = stream == null ? event.getMessage() : stream.getHead();
+		int shard = -1;
+
+		if (message.startsWith(ORDERBOOK_PREFIX) || message.startsWith(TRADE_PREFIX)) {
+			shard = getShard(message, getDataSymbolStart(message));
+		} else if (!message.startsWith("{\"table\"")) {
+			// unsubscribing clears the book so it must be done by the owner
+			int keyIndex = message.indexOf(UNSUBSCRIBE_KEY);
+			shard = getShard(message, keyIndex < 0 ? -1 : keyIndex + UNSUBSCRIBE_KEY.length());
+		}
+
+		if (shard < 0) {
+			parser.parse(event);
+		} else if (stream != null) {
+			shards[shard].publish(stream, event.getReceiveTime(), event.getLine());
+		} else {
+			shards[shard].publish(message, event.getReceiveTime(), event.getLine());
+		}
+	}
+
+	/**
+	 * Called by the I/O thread when the buffer of the ingest pipeline or of a
+	 * shard is full. A lost orderBookL2 frame leaves a hole in the book, so
+	 * its instrument is resynced. A lost trade is only counted.
+	 */
+	public void onDropped(String message) {
+		if (!message.startsWith(ORDERBOOK_PREFIX)) {
+			return;
+		}
+		int start = getDataSymbolStart(message);
+		int end = start < 0 ? -1 : message.indexOf('"', start);
+		if (end > 0) {
+			parser.onBookMessageLost(message.substring(start, end));
+		}
+	}
+
+	/**
+	 * @return where the symbol of a market data message starts or -1
+	 */
+	private static int getDataSymbolStart(String message) {
+		int filterIndex = message.indexOf(FILTER_KEY);
+		if (filterIndex >= 0) {
+			return filterIndex + FILTER_KEY.length();
+		}
+		int dataIndex = message.indexOf(DATA_KEY);
+		int symbolIndex = dataIndex < 0 ? -1 : message.indexOf(SYMBOL_KEY, dataIndex);
+		return symbolIndex < 0 ? -1 : symbolIndex + SYMBOL_KEY.length();
+	}
+
+	/**
+	 * Symbol chars are hashed in place the same way String.hashCode() does,
+	 * so no substring is created
+	 */
+	private int getShard(String message, int symbolStart) {
+		if (symbolStart < 0) {
+			return -1;
+		}
+		int hash = 0;
+		for (int i = symbolStart, n = message.length(); i < n; i++) {
+			char c = message.charAt(i);
+			if (c == '"') {
+				return getShard(hash);
+			}
+			hash = 31 * hash + c;
+		}
+		return -1;
+	}
+
+	private int getShard(int symbolHash) {
+		return (symbolHash & Integer.MAX_VALUE) % shards.length;
+	}
+
+	/**
+	 * @return -1 if market data is parsed on the ingest thread
+	 */
+	public int getShard(String symbol) {
+		return shards.length == 0 ? -1 : getShard(symbol.hashCode());
+	}
+
+	public IngestPipeline[] getShards() {
+		return shards;
+	}
+
+	/**
+	 * @return time from receiving to processing of market data frames, the
+	 *         counters are read without synchronization so a live snapshot is
+	 *         approximate
+	 */
+	public LatencyHistogram getLatency() {
+		LatencyHistogram total = new LatencyHistogram();
+		total.add(inlineLatency);
+		for (LatencyHistogram latency : latencies) {
+			total.add(latency);
+		}
+		return total;
+	}
+
+	/**
+	 * @return true if no frame is waiting or being processed
+	 */
+	public boolean isIdle() {
+		for (IngestPipeline shard : shards) {
+			if (shard.getQueueDepth() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void halt() {
+		for (IngestPipeline shard : shards) {
+			shard.halt();
+		}
+	}
+
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		for (IngestPipeline shard : shards) {
+			sb.append(shard.getName()).append(shard.getStats()).append(" ");
+		}
+		return sb.append("latency").append(getLatency()).toString();
+	}
+}
@@ -0,0 +1,92 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.Frame.Type;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
+
+/**
+ * permessage-deflate that counts what it does. Jetty creates one extension
+ * per connection and calls it on the connection's reading thread right
+ * before the socket's onFrame, so the socket picks up its counters through
+ * {@link #current()}.
+ **/
+public class MeteredDeflateExtension extends PerMessageDeflateExtension {
+
+	public static class Metrics {
+		private volatile long compressedBytes;
+		private volatile long decompressedBytes;
+		private volatile long inflateNanos;
+
+		/**
+		 * @return data frame bytes as they came from the wire
+		 */
+		public long getCompressedBytes() {
+			return compressedBytes;
+		}
+
+		public long getDecompressedBytes() {
+			return decompressedBytes;
+		}
+
+		/**
+		 * @return time spent in inflating, frames processing downstream is
+		 *         not counted
+		 */
+		public long getInflateNanos() {
+			return inflateNanos;
+		}
+
+		@Override
+		public String toString() {
+			double ratio = compressedBytes == 0 ? 0 : (double) decompressedBytes / compressedBytes;
+			return "[compressed=" + compressedBytes + ", decompressed=" + decompressedBytes + ", ratio="
+					+ String.format("%.2f", ratio) + ", inflateMs=" + inflateNanos / 1000000 + "]";
+		}
+	}
+
+	private static final ThreadLocal<Metrics> CURRENT = new ThreadLocal<>();
+
+	private final Metrics metrics = new Metrics();
+	private long downstreamNanos;
+
+	/**
+	 * @return counters of the extension that is delivering a frame on this
+	 *         thread or null
+	 */
+	public static Metrics current() {
+		return CURRENT.get();
+	}
+
+	@Override
+	public void incomingFrame(Frame frame) {
+		if (!isData(frame)) {
+			super.incomingFrame(frame);
+			return;
+		}
+		metrics.compressedBytes += frame.getPayloadLength();
+		downstreamNanos = 0;
+		long start = System.nanoTime();
+		super.incomingFrame(frame);
+		metrics.inflateNanos += System.nanoTime() - start - downstreamNanos;
+	}
+
+	@Override
+	protected void nextIncomingFrame(Frame frame) {
+		if (isData(frame)) {
+			metrics.decompressedBytes += frame.getPayloadLength();
+		}
+		CURRENT.set(metrics);
+		long start = System.nanoTime();
+		try {
+			super.nextIncomingFrame(frame);
+		} finally {
+			downstreamNanos += System.nanoTime() - start;
+			CURRENT.remove();
+		}
+	}
+
+	private static boolean isData(Frame frame) {
+		Type type = frame.getType();
+		return type == Type.TEXT || type == Type.BINARY || type == Type.CONTINUATION;
+	}
+}
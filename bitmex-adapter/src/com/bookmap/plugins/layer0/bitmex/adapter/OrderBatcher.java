@@ -0,0 +1,130 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Collects requests of one kind and sends them as one request, then hands
+ * each caller its own result. Requests are collected either for a short
+ * window that starts with the first request of a batch, or while an earlier
+ * batch is in flight, in which case a request that finds nothing in flight
+ * is sent at once. A full batch is sent at once in both cases.
+ **/
+public class OrderBatcher {
+
+	private final String name;
+	// 0 means requests are collected while a batch is in flight
+	private final long windowNanos;
+	private final int maxBatch;
+	private final ScheduledExecutorService scheduler;
+	// gets the batch, returns a result for each item in the same order
+	private final Function<List<String>, CompletableFuture<List<String>>> sender;
+
+	private List<String> items = new ArrayList<>();
+	private List<CompletableFuture<String>> futures = new ArrayList<>();
+	private ScheduledFuture<?> flush;
+	private int inFlight;
+
+	private long requests;
+	private long batches;
+	private int largestBatch;
+
+	/**
+	 * @param windowMs
+	 *            how long requests are collected, 0 to collect them only
+	 *            while a batch is in flight
+	 */
+	public OrderBatcher(String name, long windowMs, int maxBatch, ScheduledExecutorService scheduler,
+			Function<List<String>, CompletableFuture<List<String>>> sender) {
+		this.name = name;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.maxBatch = Math.max(1, maxBatch);
+		this.scheduler = scheduler;
+		this.sender = sender;
+	}
+
+	/**
+	 * @return completed with the result of this item
+	 */
+	public CompletableFuture<String> add(String item) {
+		CompletableFuture<String> future = new CompletableFuture<>();
+		boolean isReady;
+		synchronized (this) {
+			requests++;
+			items.add(item);
+			futures.add(future);
+			if (windowNanos <= 0) {
+				isReady = inFlight == 0 || items.size() >= maxBatch;
+			} else {
+				isReady = items.size() >= maxBatch;
+				if (!isReady && items.size() == 1) {
+					flush = scheduler.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+		if (isReady) {
+			flush();
+		}
+		return future;
+	}
+
+	private void flush() {
+		List<String> batchItems;
+		List<CompletableFuture<String>> batchFutures;
+		synchronized (this) {
+			if (items.isEmpty()) {
+				return;
+			}
+			if (flush != null) {
+				flush.cancel(false);
+				flush = null;
+			}
+			batchItems = items;
+			batchFutures = futures;
+			items = new ArrayList<>();
+			futures = new ArrayList<>();
+			inFlight++;
+			batches++;
+			largestBatch = Math.max(largestBatch, batchItems.size());
+		}
+
+		CompletableFuture<List<String>> results;
+		try {
+			results = sender.apply(batchItems);
+		} catch (RuntimeException e) {
+			results = new CompletableFuture<>();
+			results.completeExceptionally(e);
+		}
+		results.whenComplete((batchResults, failure) -> {
+			for (int i = 0; i < batchFutures.size(); i++) {
+				if (failure != null) {
+					batchFutures.get(i).completeExceptionally(failure);
+				} else {
+					batchFutures.get(i).complete(batchResults.get(i));
+				}
+			}
+			onBatchDone();
+		});
+	}
+
+	private void onBatchDone() {
+		boolean isReady;
+		synchronized (this) {
+			inFlight--;
+			isReady = windowNanos <= 0 && inFlight == 0 && !items.isEmpty();
+		}
+		if (isReady) {
+			// what has come meanwhile goes together
+			flush();
+		}
+	}
+
+	public synchronized String getStats() {
+		return "[" + name + " requests=" + requests + ", batches=" + batches + ", largest=" + largestBatch + "]";
+	}
+}
@@ -0,0 +1,396 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.Arrays;
+
+/**
+ * Decodes 'update', 'insert' and 'delete' orderBookL2 frames straight into
+ * primitive arrays. The arrays are reused from frame to frame so in a steady
+ * state no objects are created per level (and none per frame as long as the
+ * symbol stays the same). Anything that does not look like a plain
+ * orderBookL2 frame makes {@link #decode(CharSequence)} return false, in this
+ * case nothing is changed and the frame has to go through the generic
+ * JsonParser path. 'partial' is always left to the generic path.
+ **/
+public class OrderBookL2Decoder {
+
+	public static final int ACTION_UPDATE = 0;
+	public static final int ACTION_INSERT = 1;
+	public static final int ACTION_DELETE = 2;
+
+	private static final String PREFIX = "{\"table\":\"orderBookL2\",\"action\":\"";
+	private static final String DATA = "\",\"data\":[";
+	private static final String[] ACTIONS = { "update", "insert", "delete" };
+
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private int action;
+	private int count;
+	private String symbol;
+	private long[] ids = new long[64];
+	private long[] sizes = new long[64];
+	private boolean[] sides = new boolean[64];
+	private double[] prices = new double[64];
+
+	// scanner state
+	private CharSequence str;
+	private int pos;
+
+	public int getAction() {
+		return action;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public String getSymbol() {
+		return symbol;
+	}
+
+	public long getId(int i) {
+		return ids[i];
+	}
+
+	public long getSize(int i) {
+		return sizes[i];
+	}
+
+	public boolean isBid(int i) {
+		return sides[i];
+	}
+
+	/**
+	 * @return price as it comes from BitMEX or NaN if the level has no price
+	 *         ('update' and 'delete')
+	 */
+	public double getPrice(int i) {
+		return prices[i];
+	}
+
+	/**
+	 * @return true if the frame is an orderBookL2 update/insert/delete for a
+	 *         single symbol and has been decoded
+	 */
+	public boolean decode(CharSequence s) {
+		str = s;
+		pos = 0;
+		count = 0;
+		try {
+			if (!expect(PREFIX)) {
+				return false;
+			}
+			action = -1;
+			for (int i = 0; i < ACTIONS.length; i++) {
+				if (matches(ACTIONS[i])) {
+					action = i;
+					pos += ACTIONS[i].length();
+					break;
+				}
+			}
+			if (action < 0 || !expect(DATA)) {
+				return false;
+			}
+
+			skipWhitespace();
+			if (peek() == ']') {
+				return false;// empty data is logged by the generic path
+			}
+
+			while (true) {
+				if (!readLevel()) {
+					return false;
+				}
+				skipWhitespace();
+				char c = next();
+				if (c == ']') {
+					break;
+				} else if (c != ',') {
+					return false;
+				}
+				skipWhitespace();
+			}
+			skipWhitespace();
+			return next() == '}';
+		} catch (IndexOutOfBoundsException e) {
+			return false;
+		} finally {
+			str = null;
+		}
+	}
+
+	private boolean readLevel() {
+		if (next() != '{') {
+			return false;
+		}
+		ensureCapacity(count + 1);
+		int i = count;
+		ids[i] = Long.MIN_VALUE;
+		sizes[i] = 0;
+		prices[i] = Double.NaN;
+		boolean hasSide = false;
+
+		skipWhitespace();
+		if (peek() == '}') {
+			return false;
+		}
+
+		while (true) {
+			skipWhitespace();
+			if (next() != '"') {
+				return false;
+			}
+			int keyStart = pos;
+			int keyEnd = skipStringBody();
+			skipWhitespace();
+			if (next() != ':') {
+				return false;
+			}
+			skipWhitespace();
+
+			int keyLength = keyEnd - keyStart;
+			if (isKey(keyStart, keyLength, "symbol")) {
+				if (!readSymbol(i == 0)) {
+					return false;
+				}
+			} else if (isKey(keyStart, keyLength, "id")) {
+				ids[i] = readLong();
+			} else if (isKey(keyStart, keyLength, "side")) {
+				if (next() != '"') {
+					return false;
+				}
+				char c = next();
+				if (c == 'B') {
+					sides[i] = true;
+				} else if (c == 'S') {
+					sides[i] = false;
+				} else {
+					return false;
+				}
+				skipStringBody();
+				hasSide = true;
+			} else if (isKey(keyStart, keyLength, "size")) {
+				sizes[i] = readLong();
+			} else if (isKey(keyStart, keyLength, "price")) {
+				prices[i] = readDouble();
+			} else if (!skipScalar()) {
+				return false;
+			}
+
+			skipWhitespace();
+			char c = next();
+			if (c == '}') {
+				break;
+			} else if (c != ',') {
+				return false;
+			}
+		}
+
+		if (ids[i] == Long.MIN_VALUE || !hasSide) {
+			return false;
+		}
+		if (action == ACTION_INSERT && Double.isNaN(prices[i])) {
+			return false;
+		}
+		count++;
+		return true;
+	}
+
+	/**
+	 * All levels of a frame are expected to belong to one symbol. The symbol
+	 * string is only created when it differs from the previous frame's one.
+	 */
+	private boolean readSymbol(boolean isFirstLevel) {
+		if (next() != '"') {
+			return false;
+		}
+		int start = pos;
+		int end = skipStringBody();
+		int length = end - start;
+
+		if (symbol != null && symbol.length() == length && regionEquals(start, symbol)) {
+			return true;
+		}
+		if (!isFirstLevel) {
+			return false;
+		}
+		symbol = str.subSequence(start, end).toString();
+		return true;
+	}
+
+	private long readLong() {
+		boolean negative = false;
+		if (peek() == '-') {
+			negative = true;
+			pos++;
+		}
+		long value = 0;
+		int digits = 0;
+		while (pos < str.length()) {
+			char c = str.charAt(pos);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			value = value * 10 + (c - '0');
+			pos++;
+			digits++;
+		}
+		if (digits == 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		return negative ? -value : value;
+	}
+
+	private double readDouble() {
+		int start = pos;
+		boolean negative = false;
+		if (peek() == '-') {
+			negative = true;
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+
+		while (pos < str.length() && isDigit(str.charAt(pos))) {
+			mantissa = mantissa * 10 + (str.charAt(pos++) - '0');
+			digits++;
+		}
+		if (pos < str.length() && str.charAt(pos) == '.') {
+			pos++;
+			while (pos < str.length() && isDigit(str.charAt(pos))) {
+				mantissa = mantissa * 10 + (str.charAt(pos++) - '0');
+				digits++;
+				exponent--;
+			}
+		}
+		if (pos < str.length() && (str.charAt(pos) == 'e' || str.charAt(pos) == 'E')) {
+			pos++;
+			boolean negativeExp = false;
+			if (str.charAt(pos) == '-' || str.charAt(pos) == '+') {
+				negativeExp = str.charAt(pos) == '-';
+				pos++;
+			}
+			int exp = 0;
+			while (pos < str.length() && isDigit(str.charAt(pos))) {
+				exp = exp * 10 + (str.charAt(pos++) - '0');
+			}
+			exponent += negativeExp ? -exp : exp;
+		}
+		if (digits == 0) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		double value;
+		if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+			// both operands are exact so the result is correctly rounded
+			value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+		} else {
+			// too many digits for the fast way, rare
+			value = Math.abs(Double.parseDouble(str.subSequence(start, pos).toString()));
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Skips a string, number or literal. Nested objects and arrays are not
+	 * expected inside a level.
+	 */
+	private boolean skipScalar() {
+		char c = peek();
+		if (c == '"') {
+			pos++;
+			skipStringBody();
+			return true;
+		}
+		if (c == '{' || c == '[') {
+			return false;
+		}
+		while (pos < str.length()) {
+			c = str.charAt(pos);
+			if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+				return true;
+			}
+			pos++;
+		}
+		return false;
+	}
+
+	/**
+	 * @return position of the closing quote, the scanner is moved behind it
+	 */
+	private int skipStringBody() {
+		while (true) {
+			char c = str.charAt(pos++);
+			if (c == '\\') {
+				pos++;
+			} else if (c == '"') {
+				return pos - 1;
+			}
+		}
+	}
+
+	private boolean isKey(int start, int length, String key) {
+		return length == key.length() && regionEquals(start, key);
+	}
+
+	private boolean regionEquals(int start, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (str.charAt(start + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean matches(String value) {
+		return pos + value.length() <= str.length() && regionEquals(pos, value);
+	}
+
+	private boolean expect(String value) {
+		if (!matches(value)) {
+			return false;
+		}
+		pos += value.length();
+		return true;
+	}
+
+	private char peek() {
+		return str.charAt(pos);
+	}
+
+	private char next() {
+		return str.charAt(pos++);
+	}
+
+	private void skipWhitespace() {
+		while (pos < str.length()) {
+			if (!isWhitespace(str.charAt(pos))) {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * The four whitespace chars of JSON
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= ids.length) {
+			return;
+		}
+		int newLength = Math.max(capacity, ids.length * 2);
+		ids = Arrays.copyOf(ids, newLength);
+		sizes = Arrays.copyOf(sizes, newLength);
+		sides = Arrays.copyOf(sides, newLength);
+		prices = Arrays.copyOf(prices, newLength);
+	}
+}
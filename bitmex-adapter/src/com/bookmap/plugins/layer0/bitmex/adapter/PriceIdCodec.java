@@ -0,0 +1,134 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+/**
+ * Resolves orderBookL2 level ids to intPrices. BitMEX builds the id from the
+ * instrument index and the price, i.e. id = base - intPrice * stepsPerTick
+ * (XBTUSD has stepsPerTick = 50 because its ids are in 0.01 units while the
+ * tick is 0.5). Both constants are taken from the partial and every inserted
+ * level is checked against them. Levels that do not fit (or all of them if
+ * the partial did not fit) go to a primitive map and leave it on 'delete', so
+ * it only ever holds live levels. An id that is in neither and does not give
+ * a whole, non-negative number of ticks is unknown.
+ **/
+public class PriceIdCodec {
+
+	private static final int MISSING = Integer.MIN_VALUE;
+
+	private final String symbol;
+	private final LongIntHashMap exceptions = new LongIntHashMap(64);
+	private boolean isCalibrated = false;
+	private long base;
+	private long stepsPerTick;
+
+	public PriceIdCodec(String symbol) {
+		this.symbol = symbol;
+	}
+
+	/**
+	 * Forgets everything, called before a partial is applied
+	 */
+	public void reset() {
+		exceptions.clear();
+		isCalibrated = false;
+	}
+
+	/**
+	 * Takes the constants from two levels of different prices
+	 *
+	 * @return false if the ids do not follow the formula
+	 */
+	public boolean calibrate(long idA, int intPriceA, long idB, int intPriceB) {
+		isCalibrated = false;
+		long priceDiff = intPriceB - intPriceA;
+		if (priceDiff == 0) {
+			return false;
+		}
+		long idDiff = idA - idB;
+		if (idDiff % priceDiff != 0 || idDiff / priceDiff <= 0) {
+			return false;
+		}
+		stepsPerTick = idDiff / priceDiff;
+		base = idA + intPriceA * stepsPerTick;
+		isCalibrated = true;
+		return true;
+	}
+
+	public boolean isCalibrated() {
+		return isCalibrated;
+	}
+
+	/**
+	 * @return true if the level's id follows the formula
+	 */
+	public boolean fits(long id, int intPrice) {
+		return isCalibrated && compute(id) == intPrice;
+	}
+
+	/**
+	 * Remembers the level unless its id can be computed
+	 */
+	public void onInsert(long id, int intPrice) {
+		if (fits(id, intPrice)) {
+			// a stale exception would shadow the formula
+			if (exceptions.size() > 0) {
+				exceptions.remove(id, MISSING);
+			}
+			return;
+		}
+		if (exceptions.size() >= ConnectorUtils.PRICE_ID_EXCEPTIONS_LIMIT) {
+			throw new IllegalStateException("[bitmex] PriceIdCodec " + symbol + ": more than "
+					+ ConnectorUtils.PRICE_ID_EXCEPTIONS_LIMIT + " levels do not fit the id formula");
+		}
+		exceptions.put(id, intPrice);
+	}
+
+	public int getIntPrice(long id) {
+		int intPrice = exceptions.size() > 0 ? exceptions.get(id, MISSING) : MISSING;
+		if (intPrice != MISSING) {
+			return intPrice;
+		}
+		return resolve(id);
+	}
+
+	/**
+	 * Same as getIntPrice but also forgets the level
+	 */
+	public int onDelete(long id) {
+		int intPrice = exceptions.size() > 0 ? exceptions.remove(id, MISSING) : MISSING;
+		if (intPrice != MISSING) {
+			return intPrice;
+		}
+		return resolve(id);
+	}
+
+	public int getExceptionsCount() {
+		return exceptions.size();
+	}
+
+	/**
+	 * @return approximate heap bytes held
+	 */
+	public long getFootprint() {
+		return 48 + exceptions.getFootprint();
+	}
+
+	private int resolve(long id) {
+		int intPrice = isCalibrated ? compute(id) : MISSING;
+		if (intPrice == MISSING) {
+			throw new IllegalStateException("[bitmex] PriceIdCodec " + symbol + ": unknown id " + id);
+		}
+		return intPrice;
+	}
+
+	/**
+	 * @return MISSING if the id is not a whole number of ticks below the base
+	 *         or the price does not fit an int
+	 */
+	private int compute(long id) {
+		long steps = base - id;
+		if (steps < 0 || steps % stepsPerTick != 0 || steps / stepsPerTick >= Integer.MAX_VALUE) {
+			return MISSING;
+		}
+		return (int) (steps / stepsPerTick);
+	}
+}
@@ -0,0 +1,257 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * Token bucket every REST request of the adapter goes through, so BitMEX
+ * does not answer 429 when a cancel matters most. The bucket starts with
+ * the configured limit and then follows the X-RateLimit-* headers of the
+ * responses: the limit sets its size and refill rate, the remaining count
+ * never lets it hold more than BitMEX says is left. A 429 stops all lanes
+ * until Retry-After (or X-RateLimit-Reset) has passed.
+ *
+ * BitMEX limits signed requests per account and unsigned ones per IP, so
+ * each TradeConnector (one API key) has a governor of its own for signed
+ * requests and the unsigned ones share one for the whole JVM.
+ *
+ * Waiting requests are queued by lane and served by priority, a lower lane
+ * never takes a token while a higher one waits, and the last few tokens are
+ * kept for the cancel lane. Tokens are handed out on the caller's thread
+ * when there are some, otherwise on the shared WheelTimer.
+ **/
+public class RateGovernor {
+
+	public static enum Lane {
+		// cancels and amends of stops, they protect positions
+		CANCEL,
+		// new orders and other amends
+		ORDER,
+		// history, instruments and other queries
+		QUERY;
+	}
+
+	private static class Waiter {
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private final long queuedNanos = System.nanoTime();
+	}
+
+	private static RateGovernor sharedPublic;
+
+	private final String name;
+	private final int cancelReserve;
+	private final List<ArrayDeque<Waiter>> queues = new ArrayList<>();
+
+	private double capacity;
+	private double nanosPerToken;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	private long pausedUntilNanos = lastRefill;
+	private WheelTimer.Timeout wakeup;
+	private long wakeupAtNanos;
+
+	// per lane
+	private final long[] granted = new long[Lane.values().length];
+	private final long[] waitedNanos = new long[Lane.values().length];
+	private final long[] maxWaitNanos = new long[Lane.values().length];
+	private long throttled;
+
+	/**
+	 * @return the adapter's governor of requests made without a key
+	 */
+	public static synchronized RateGovernor sharedPublic() {
+		if (sharedPublic == null) {
+			sharedPublic = new RateGovernor("public", ConnectorUtils.REST_PUBLIC_REQUESTS_PER_MINUTE,
+					ConnectorUtils.REST_BURST, 0);
+		}
+		return sharedPublic;
+	}
+
+	/**
+	 * @param requestsPerMinute
+	 *            and burst are used until the first response tells the real
+	 *            limit
+	 */
+	public RateGovernor(String name, int requestsPerMinute, int burst, int cancelReserve) {
+		this.name = name;
+		this.cancelReserve = cancelReserve;
+		this.capacity = burst;
+		this.nanosPerToken = (double) TimeUnit.MINUTES.toNanos(1) / requestsPerMinute;
+		this.tokens = burst;
+		for (int i = 0; i < Lane.values().length; i++) {
+			queues.add(new ArrayDeque<>());
+		}
+	}
+
+	/**
+	 * Sends the request when its lane gets a token and learns the limit from
+	 * the response
+	 *
+	 * @param request
+	 *            called when the token is granted, so a signature made inside
+	 *            does not age in the queue
+	 */
+	public CompletableFuture<RestClient.Response> submit(Lane lane,
+			Supplier<CompletableFuture<RestClient.Response>> request) {
+		return acquire(lane).thenCompose(nothing -> request.get()).whenComplete((response, failure) -> {
+			if (response != null) {
+				onResponse(response);
+			}
+		});
+	}
+
+	/**
+	 * @return completed when a request of the lane may be made
+	 */
+	public CompletableFuture<Void> acquire(Lane lane) {
+		Waiter waiter = new Waiter();
+		List<Waiter> ready;
+		synchronized (this) {
+			queues.get(lane.ordinal()).add(waiter);
+			ready = dispatch(System.nanoTime());
+		}
+		complete(ready);
+		return waiter.future;
+	}
+
+	public void onResponse(RestClient.Response response) {
+		Map<String, List<String>> headers = response.getHeaders();
+		long limit = getHeader(headers, "X-RateLimit-Limit", -1);
+		long remaining = getHeader(headers, "X-RateLimit-Remaining", -1);
+		List<Waiter> ready;
+
+		synchronized (this) {
+			long now = System.nanoTime();
+			refill(now);
+			if (limit > 0 && limit != capacity) {
+				Log.info("[bitmex] RateGovernor onResponse: " + name + " limit " + (long) capacity + " -> " + limit
+						+ " per minute");
+				capacity = limit;
+				nanosPerToken = (double) TimeUnit.MINUTES.toNanos(1) / limit;
+			}
+			if (remaining >= 0) {
+				// only lower, tokens taken since this request was counted are
+				// not in the header yet
+				tokens = Math.min(tokens, remaining);
+			}
+			if (response.getStatus() == 429) {
+				throttled++;
+				long pauseMs = getHeader(headers, "Retry-After", -1) * 1000;
+				if (pauseMs < 0) {
+					long reset = getHeader(headers, "X-RateLimit-Reset", -1);
+					pauseMs = reset < 0 ? 0 : reset * 1000 - System.currentTimeMillis();
+				}
+				pauseMs = Math.max(1000, pauseMs);
+				tokens = 0;
+				pausedUntilNanos = Math.max(pausedUntilNanos, now + TimeUnit.MILLISECONDS.toNanos(pauseMs));
+				Log.info("[bitmex] RateGovernor onResponse: " + name + " 429, requests paused for " + pauseMs
+						+ " ms");
+			}
+			ready = dispatch(now);
+		}
+		complete(ready);
+	}
+
+	private static long getHeader(Map<String, List<String>> headers, String name, long defaultValue) {
+		List<String> values = headers == null ? null : headers.get(name);
+		if (values == null || values.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(values.get(0).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(capacity, tokens + (now - lastRefill) / nanosPerToken);
+		lastRefill = now;
+	}
+
+	/**
+	 * Hands out what tokens there are by priority and schedules a wakeup for
+	 * the first waiter left
+	 *
+	 * @return waiters to complete outside the lock
+	 */
+	private List<Waiter> dispatch(long now) {
+		refill(now);
+		if (now < pausedUntilNanos) {
+			scheduleWakeup(now, pausedUntilNanos);
+			return Collections.emptyList();
+		}
+
+		List<Waiter> ready = null;
+		for (Lane lane : Lane.values()) {
+			ArrayDeque<Waiter> queue = queues.get(lane.ordinal());
+			double needed = lane == Lane.CANCEL ? 1 : 1 + cancelReserve;
+			while (!queue.isEmpty()) {
+				if (tokens < needed) {
+					scheduleWakeup(now, now + (long) ((needed - tokens) * nanosPerToken));
+					return ready == null ? Collections.emptyList() : ready;
+				}
+				tokens -= 1;
+				Waiter waiter = queue.poll();
+				long waited = now - waiter.queuedNanos;
+				granted[lane.ordinal()]++;
+				waitedNanos[lane.ordinal()] += waited;
+				maxWaitNanos[lane.ordinal()] = Math.max(maxWaitNanos[lane.ordinal()], waited);
+				if (ready == null) {
+					ready = new ArrayList<>();
+				}
+				ready.add(waiter);
+			}
+		}
+		return ready == null ? Collections.emptyList() : ready;
+	}
+
+	private void scheduleWakeup(long now, long atNanos) {
+		if (wakeup != null && !wakeup.isCancelled() && wakeupAtNanos <= atNanos) {
+			return;
+		}
+		if (wakeup != null) {
+			wakeup.cancel();
+		}
+		wakeupAtNanos = atNanos;
+		wakeup = WheelTimer.shared().schedule(this::onWakeup, atNanos - now, TimeUnit.NANOSECONDS);
+	}
+
+	private void onWakeup() {
+		List<Waiter> ready;
+		synchronized (this) {
+			wakeup = null;
+			ready = dispatch(System.nanoTime());
+		}
+		complete(ready);
+	}
+
+	private static void complete(List<Waiter> ready) {
+		for (Waiter waiter : ready) {
+			waiter.future.complete(null);
+		}
+	}
+
+	public synchronized String getStats() {
+		StringBuilder sb = new StringBuilder("[").append(name).append(" ");
+		for (Lane lane : Lane.values()) {
+			int i = lane.ordinal();
+			sb.append(lane).append(" granted=").append(granted[i]).append(" queued=").append(queues.get(i).size())
+					.append(" meanWaitMs=")
+					.append(granted[i] == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitedNanos[i] / granted[i]))
+					.append(" maxWaitMs=").append(TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[i])).append(", ");
+		}
+		refill(System.nanoTime());
+		sb.append("tokens=").append((long) tokens).append("/").append((long) capacity).append(", throttled=")
+				.append(throttled).append("]");
+		return sb.toString();
+	}
+}
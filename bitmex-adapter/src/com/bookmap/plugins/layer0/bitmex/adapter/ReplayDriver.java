@@ -0,0 +1,282 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.bookmap.plugins.layer0.bitmex.Provider;
+
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * Pushes a journal written by FrameRecorder through the same pipeline the
+ * live connection uses (IngestPipeline, MarketDataRouter, JsonParser,
+ * Provider) into a listener that only counts what it gets. Meant for
+ * regression and capacity testing:
+ *
+ * <pre>
+ * java ... ReplayDriver journalDirOrSegment [--pace=max|realtime|10x] [--instruments=XBTUSD:0.5,ETHUSD:0.05] [--shards=N]
+ * </pre>
+ *
+ * Tick sizes are fetched from BitMEX unless given with --instruments.
+ * Private topics are skipped as there is no account behind the replay. At
+ * the end frames per second and the receive to processed latency are
+ * printed.
+ **/
+public class ReplayDriver {
+
+	private static final String TABLE_PREFIX = "{\"table\":\"";
+
+	private static class CountingProvider extends Provider {
+		private final LongAdder depthUpdates = new LongAdder();
+		private final LongAdder trades = new LongAdder();
+
+		CountingProvider() {
+			dataListeners.add(new Layer1ApiDataListener() {
+				@Override
+				public void onDepth(String alias, boolean isBid, int price, int size) {
+					depthUpdates.increment();
+				}
+
+				@Override
+				public void onTrade(String alias, double price, int size, TradeInfo tradeInfo) {
+					trades.increment();
+				}
+
+				@Override
+				public void onMarketMode(String alias, MarketMode marketMode) {
+				}
+			});
+		}
+	}
+
+	private final JournalReader reader;
+	// relative to the recording, 0 means as fast as possible
+	private final double speed;
+	private final CountingProvider provider = new CountingProvider();
+	private final JsonParser parser = new JsonParser();
+	private final MarketDataRouter router;
+	private final IngestPipeline pipeline;
+	private final LongAdder failures = new LongAdder();
+	private final Set<String> privateTables = new HashSet<>();
+	// fragmented messages being replayed, null for a skipped one
+	private final Map<Integer, FrameReader> activeStreams = new HashMap<>();
+
+	private long frames;
+	private long bytes;
+	private long skipped;
+	private long gaps;
+
+	/**
+	 * @param speed
+	 *            1 for real time, 10 for ten times faster, 0 for as fast as
+	 *            possible
+	 */
+	public ReplayDriver(JournalReader reader, double speed, Map<String, BmInstrument> instruments, int shards) {
+		this.reader = reader;
+		this.speed = speed;
+		parser.setProvider(provider);
+		parser.setActiveInstrumentsMap(instruments);
+		for (String table : ConnectorUtils.getAuthenticatedTopicsList()) {
+			privateTables.add(table);
+		}
+
+		Runnable failureListener = failures::increment;
+		router = new MarketDataRouter(parser, shards, failureListener);
+		// nothing may be dropped in a replay
+		pipeline = new IngestPipeline("replay", router, failureListener, ConnectorUtils.INGEST_BUFFER_SIZE,
+				ConnectorUtils.INGEST_WAIT_STRATEGY, IngestPipeline.OverflowPolicy.BLOCK);
+	}
+
+	public void run() throws IOException, InterruptedException {
+		long firstTime = -1;
+		long startNanos = System.nanoTime();
+
+		while (reader.next()) {
+			if (speed > 0) {
+				if (firstTime < 0) {
+					firstTime = reader.getReceiveTime();
+				}
+				waitUntil(startNanos + (long) ((reader.getReceiveTime() - firstTime) / speed));
+			}
+			inject();
+		}
+		while (pipeline.getQueueDepth() > 0 || !router.isIdle()) {
+			Thread.sleep(1);
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("[bitmex] ReplayDriver: " + frames + " frames, " + bytes / 1024 / 1024 + " MB, skipped "
+				+ skipped + ", gaps " + gaps + " in " + String.format("%.3f", seconds) + " s");
+		System.out.println("[bitmex] ReplayDriver: " + String.format("%.0f", frames / seconds) + " frames/s, "
+				+ String.format("%.1f", bytes / seconds / 1024 / 1024) + " MB/s");
+		System.out.println("[bitmex] ReplayDriver: delivered " + provider.depthUpdates.sum() + " depth updates, "
+				+ provider.trades.sum() + " trades, failures " + failures.sum());
+		System.out.println("[bitmex] ReplayDriver: latency " + router.getLatency());
+		System.out.println("[bitmex] ReplayDriver: ingest " + pipeline.getStats() + " " + router.getStats());
+	}
+
+	private static void waitUntil(long targetNanos) {
+		long left;
+		while ((left = targetNanos - System.nanoTime()) > 0) {
+			if (left > 1000000) {
+				LockSupport.parkNanos(left - 500000);
+			}
+		}
+	}
+
+	/**
+	 * Does what ClientSocket.onFrame does with a frame
+	 */
+	private void inject() {
+		ByteBuffer payload = reader.getPayload();
+		Integer connectionId = reader.getConnectionId();
+		int line = reader.getLine();
+		long receiveTime = System.nanoTime();
+		frames++;
+		bytes += payload.remaining();
+
+		if (reader.isGap()) {
+			gaps++;
+			// the rest of an open message was not recorded
+			FrameReader broken = activeStreams.remove(connectionId);
+			if (broken != null) {
+				broken.fail("frames lost in the journal");
+			}
+		}
+
+		if (reader.isContinuation()) {
+			FrameReader stream = activeStreams.get(connectionId);
+			if (stream != null) {
+				stream.append(payload);
+				if (reader.isFin()) {
+					stream.finish();
+				}
+			} else {
+				skipped++;
+			}
+			if (reader.isFin()) {
+				activeStreams.remove(connectionId);
+			}
+			return;
+		}
+
+		boolean isStream = !reader.isFin() || payload.remaining() > ConnectorUtils.WS_STREAM_THRESHOLD;
+		String message = isStream ? null : StandardCharsets.UTF_8.decode(payload.slice()).toString();
+		FrameReader stream = isStream ? new FrameReader(payload) : null;
+
+		if (isPrivate(isStream ? stream.getHead() : message)) {
+			skipped++;
+			if (!reader.isFin()) {
+				activeStreams.put(connectionId, null);
+			}
+			return;
+		}
+
+		if (!isStream) {
+			pipeline.publish(message, receiveTime, line);
+			return;
+		}
+		if (reader.isFin()) {
+			stream.finish();
+		} else {
+			activeStreams.put(connectionId, stream);
+		}
+		pipeline.publish(stream, receiveTime, line);
+	}
+
+	private boolean isPrivate(String message) {
+		if (!message.startsWith(TABLE_PREFIX)) {
+			return false;
+		}
+		int end = message.indexOf('"', TABLE_PREFIX.length());
+		return end > 0 && privateTables.contains(message.substring(TABLE_PREFIX.length(), end));
+	}
+
+	public void halt() {
+		pipeline.halt();
+		router.halt();
+	}
+
+	/**
+	 * @param value
+	 *            max, realtime or a multiplier like 10x
+	 */
+	static double parseSpeed(String value) {
+		if (value.equals("max")) {
+			return 0;
+		}
+		if (value.equals("realtime")) {
+			return 1;
+		}
+		if (value.endsWith("x")) {
+			value = value.substring(0, value.length() - 1);
+		}
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * @param value
+	 *            symbol:tickSize pairs separated by commas
+	 */
+	static Map<String, BmInstrument> parseInstruments(String value) {
+		Map<String, BmInstrument> instruments = new HashMap<>();
+		for (String pair : value.split(",")) {
+			String[] parts = pair.split(":");
+			instruments.put(parts[0], new BmInstrument(parts[0], Double.parseDouble(parts[1])));
+		}
+		return instruments;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("usage: ReplayDriver journalDirOrSegment [--pace=max|realtime|10x]"
+					+ " [--instruments=XBTUSD:0.5,...] [--shards=N]");
+			return;
+		}
+		double speed = 0;
+		Map<String, BmInstrument> instruments = null;
+		int shards = ConnectorUtils.MARKET_DATA_SHARDS;
+
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("--pace=")) {
+				speed = parseSpeed(arg.substring("--pace=".length()));
+			} else if (arg.startsWith("--instruments=")) {
+				instruments = parseInstruments(arg.substring("--instruments=".length()));
+			} else if (arg.startsWith("--shards=")) {
+				shards = Math.max(0, Integer.parseInt(arg.substring("--shards=".length())));
+			} else {
+				throw new IllegalArgumentException("[bitmex] ReplayDriver: unknown argument " + arg);
+			}
+		}
+
+		if (instruments == null) {
+			BmConnector connector = new BmConnector();
+			connector.setRestActiveInstrUrl(ConnectorUtils.bitmex_restActiveInstrUrl);
+			connector.fillActiveBmInstrumentsMap();
+			instruments = connector.getActiveInstrumentsMap();
+		}
+
+		JournalReader reader = new JournalReader(new File(args[0]));
+		System.out.println("[bitmex] ReplayDriver: " + reader.getSegments().size() + " segments, "
+				+ instruments.size() + " instruments, speed " + (speed == 0 ? "max" : speed + "x"));
+		ReplayDriver driver = new ReplayDriver(reader, speed, instruments, shards);
+		try {
+			driver.run();
+		} finally {
+			driver.halt();
+			reader.close();
+		}
+	}
+}
@@ -62,6 +62,15 @@ public class ResponseByWebSocket {
 		return request;
 	}
 
+	public void setRequestOp(String op) {
+		this.request = new ContainerReq();
+		this.request.setOp(op);
+	}
+
+	public void setUnsubscribe(String unsubscribe) {
+		this.unsubscribe = unsubscribe;
+	}
+
 	public boolean isGettingUnsubscibedFromOrderBook() {
 		if (this.unsubscribe.contains("orderBookL2:")) {
 			return true;
@@ -0,0 +1,210 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * HTTPS client of the BitMEX REST API shared by the whole adapter. Jetty's
+ * HttpClient keeps a pool of keep-alive connections per host, so a request
+ * goes over a connection whose TLS handshake is already done, and requests
+ * made at the same time go over different connections of the pool. A
+ * request is sent without blocking, its response completes a future on the
+ * client's threads, send() waits for it.
+ **/
+public class RestClient {
+
+	/**
+	 * Status, headers and body of a response
+	 **/
+	public static class Response {
+		private final int status;
+		// header names are case insensitive
+		private final Map<String, List<String>> headers;
+		private final String body;
+
+		private Response(int status, Map<String, List<String>> headers, String body) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public Map<String, List<String>> getHeaders() {
+			return headers;
+		}
+
+		public String getBody() {
+			return body;
+		}
+	}
+
+	private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+	private static RestClient shared;
+
+	private final HttpClient httpClient;
+	private final long timeoutMs;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	/**
+	 * @return the adapter's client, started on first use and never stopped
+	 */
+	public static synchronized RestClient shared() {
+		if (shared == null) {
+			shared = new RestClient(ConnectorUtils.REST_CONNECTIONS, ConnectorUtils.REST_TIMEOUT_MS,
+					ConnectorUtils.REST_IDLE_TIMEOUT_MS);
+		}
+		return shared;
+	}
+
+	public RestClient(int connections, long timeoutMs, long idleTimeoutMs) {
+		this.timeoutMs = timeoutMs;
+
+		SslContextFactory ssl = new SslContextFactory();
+		ssl.setEndpointIdentificationAlgorithm("HTTPS");
+		httpClient = new HttpClient(ssl);
+		httpClient.setMaxConnectionsPerDestination(connections);
+		httpClient.setIdleTimeout(idleTimeoutMs);
+		httpClient.setConnectTimeout(timeoutMs);
+		httpClient.setFollowRedirects(false);
+
+		QueuedThreadPool executor = new QueuedThreadPool(Math.max(8, connections * 2), 2);
+		executor.setName("-> BmConnector: rest client");
+		executor.setDaemon(true);
+		httpClient.setExecutor(executor);
+		httpClient.setScheduler(new ScheduledExecutorScheduler("-> BmConnector: rest client timer", true));
+
+		try {
+			httpClient.start();
+		} catch (Exception e) {
+			throw new RuntimeException("[bitmex] RestClient: cannot start", e);
+		}
+		Log.info("[bitmex] RestClient: started, connections=" + connections + " timeoutMs=" + timeoutMs
+				+ " idleTimeoutMs=" + idleTimeoutMs);
+	}
+
+	/**
+	 * @param headers
+	 *            may be null
+	 * @param body
+	 *            null for no body
+	 * @return completed with the response of any status, or exceptionally if
+	 *         there is no response
+	 */
+	public CompletableFuture<Response> sendAsync(String method, String url, Map<String, String> headers,
+			String contentType, String body) {
+		CompletableFuture<Response> future = new CompletableFuture<>();
+		long start = System.nanoTime();
+		requests.incrementAndGet();
+
+		Request request;
+		try {
+			request = httpClient.newRequest(url).method(method).timeout(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			// malformed url
+			failures.incrementAndGet();
+			future.completeExceptionally(e);
+			return future;
+		}
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				request.header(header.getKey(), header.getValue());
+			}
+		}
+		if (body != null) {
+			request.content(new StringContentProvider(contentType, body, StandardCharsets.UTF_8));
+		}
+
+		request.send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+			@Override
+			public void onComplete(Result result) {
+				totalNanos.addAndGet(System.nanoTime() - start);
+				if (result.isFailed()) {
+					failures.incrementAndGet();
+					future.completeExceptionally(result.getFailure());
+					return;
+				}
+				Map<String, List<String>> responseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+				for (HttpField field : result.getResponse().getHeaders()) {
+					responseHeaders.computeIfAbsent(field.getName(), k -> new ArrayList<>()).add(field.getValue());
+				}
+				future.complete(new Response(result.getResponse().getStatus(), responseHeaders,
+						getContentAsString(StandardCharsets.UTF_8)));
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Same as sendAsync but waits for the response
+	 *
+	 * @throws IOException
+	 *             if there is no response, the cause is kept when it is an
+	 *             IOException itself (UnknownHostException and the like)
+	 */
+	public Response send(String method, String url, Map<String, String> headers, String contentType, String body)
+			throws IOException {
+		return await(sendAsync(method, url, headers, contentType, body));
+	}
+
+	/**
+	 * Waits for a response sent with sendAsync
+	 *
+	 * @throws IOException
+	 *             as send does
+	 */
+	public static Response await(CompletableFuture<Response> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("[bitmex] RestClient await: interrupted");
+		} catch (ExecutionException e) {
+			throw toIOException(e.getCause());
+		}
+	}
+
+	public static IOException toIOException(Throwable failure) {
+		if (failure instanceof ExecutionException || failure instanceof CompletionException) {
+			failure = failure.getCause();
+		}
+		if (failure instanceof IOException) {
+			return (IOException) failure;
+		}
+		return new IOException("[bitmex] RestClient: " + failure, failure);
+	}
+
+	public String getStats() {
+		long count = requests.get();
+		return "[requests=" + count + ", failures=" + failures.get() + ", meanMs="
+				+ (count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count)) + "]";
+	}
+}
@@ -1,28 +1,34 @@
 package com.bookmap.plugins.layer0.bitmex.adapter;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.NoRouteToHostException;
-import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.bookmap.plugins.layer0.bitmex.Provider;
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils.GeneralType;
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils.Method;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import velox.api.layer1.common.Log;
 import velox.api.layer1.data.OrderMoveParameters;
 import velox.api.layer1.data.OrderType;
 import velox.api.layer1.data.SimpleOrderSendParameters;
-import velox.api.layer1.layers.utils.OrderBook;
 
 public class TradeConnector {
 
@@ -30,6 +36,35 @@ public class TradeConnector {
 	private String orderApiSecret;
 	private Provider provider;
 
+	// order request answers are handled here, see requireAsync, and batches
+	// are flushed
+	private final ScheduledExecutorService orderExecutor;
+	// the last request of each order still in progress
+	private final Map<String, CompletableFuture<String>> orderRequests = new HashMap<>();
+	// single new orders of one symbol made at the same time go as one
+	// request, and so do single cancels made while a cancel is in flight,
+	// see OrderBatcher
+	private final Map<String, OrderBatcher> newOrderBatchers = new ConcurrentHashMap<>();
+	private final OrderBatcher cancelBatcher;
+	// BitMEX limits signed requests per API key, so each key has its own
+	private final RateGovernor governor = new RateGovernor("signed", ConnectorUtils.REST_REQUESTS_PER_MINUTE,
+			ConnectorUtils.REST_BURST, ConnectorUtils.REST_CANCEL_RESERVE);
+
+	public TradeConnector() {
+		class CustomThreadFactory implements ThreadFactory {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "-> BmConnector: orders " + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+		orderExecutor = Executors.newScheduledThreadPool(ConnectorUtils.ORDER_THREADS, new CustomThreadFactory());
+		cancelBatcher = new OrderBatcher("cancels", 0, ConnectorUtils.ORDER_BATCH_MAX, orderExecutor,
+				this::sendCancels);
+	}
+
 	public void setProvider(Provider provider) {
 		this.provider = provider;
 	}
@@ -52,63 +87,57 @@ public class TradeConnector {
 
 	public String makeRestGetQuery(String address) {
 		String addr = address;
-		long moment = ConnectorUtils.getMomentAndTimeToLive();
-
-		Log.info("[bitmex] TradeConnector makeRestGetQuery(xx) moment = " + moment);
-
-		String messageBody = ConnectorUtils.createMessageBody("GET", addr, "",
-				moment);
-		String signature = ConnectorUtils.generateSignature(orderApiSecret, messageBody);
 		String response = null;
 
 		try {
-			URL url = new URL(provider.getConnector().getRestApi() + addr);
-			HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-			conn.setRequestMethod("GET");
-			// conn.setRequestProperty("Content-Type", "application/json");
-			conn.setRequestProperty("Accept", "application/json");
-			conn.setRequestProperty("api-expires", Long.toString(moment));
-			conn.setRequestProperty("api-key", orderApiKey);
-			conn.setRequestProperty("api-signature", signature);
-
-			if (conn.getResponseCode() == 200) {
-				BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
-				StringBuilder sb = new StringBuilder("");
-				String output = null;
-
-				while ((output = br.readLine()) != null) {
-					sb.append(output);
-				}
-				// conn.disconnect();
-				String rateLimitIfExists = ConnectorUtils.processRateLimitHeaders(conn.getHeaderFields());
+			RestClient.Response resp = RestClient.await(governor.submit(RateGovernor.Lane.QUERY, () -> {
+				long moment = ConnectorUtils.getMomentAndTimeToLive();
+				Log.info("[bitmex] TradeConnector makeRestGetQuery(xx) moment = " + moment);
+				return RestClient.shared().sendAsync("GET", provider.getConnector().getRestApi() + addr,
+						createHeaders("GET", addr, "", moment), null, null);
+			}));
+
+			if (resp.getStatus() == 200) {
+				String rateLimitIfExists = ConnectorUtils.processRateLimitHeaders(resp.getHeaders());
 				if (rateLimitIfExists != null) {
 					provider.pushRateLimitWarning(rateLimitIfExists);
 				}
-				response = sb.toString();
+				response = resp.getBody();
 			} else {
-				BufferedReader br = new BufferedReader(new InputStreamReader((conn.getErrorStream())));
-				StringBuilder sb = new StringBuilder("");
-				String output = null;
-
-				while ((output = br.readLine()) != null) {
-					sb.append(output);
-				}
-				Log.info("[bitmex] TradeConnector makeRestGetQery err: " + sb.toString());
+				Log.info("[bitmex] TradeConnector makeRestGetQery err: " + resp.getBody());
 			}
+		} catch (java.io.InterruptedIOException e) {
+			Log.info("[bitmex] TradeConnector makeRestGetQuery: interrupted");
 		} catch (UnknownHostException | NoRouteToHostException e) {
 			Log.info("[bitmex] TradeConnector makeRestGetQuery: no response from server");
 		} catch (java.net.SocketException e) {
 			Log.info("[bitmex] TradeConnector makeRestGetQuery: network is unreachable");
 		} catch (IOException e) {
-			Log.info("[bitmex] TradeConnector makeRestGetQuery: buffer reading error");
+			Log.info("[bitmex] TradeConnector makeRestGetQuery: request failed");
 			e.printStackTrace();
 		}
 		return response;
 	}
 
+	/**
+	 * Signs a request, the signature covers the method, the path with the
+	 * query, the expiration moment and the body
+	 */
+	private Map<String, String> createHeaders(String method, String subPath, String data, long moment) {
+		String messageBody = ConnectorUtils.createMessageBody(method, subPath, data, moment);
+		String signature = ConnectorUtils.generateSignature(orderApiSecret, messageBody);
+
+		Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("Accept", "application/json");
+		headers.put("api-expires", Long.toString(moment));
+		headers.put("api-key", orderApiKey);
+		headers.put("api-signature", signature);
+		return headers;
+	}
+
 	private double getPegOffset(String symbol, double stopPrice) {
 		BmInstrument instr = provider.getConnector().getActiveInstrumentsMap().get(symbol);
-		OrderBook orderBook = instr.getOrderBook();
+		BmOrderBook orderBook = instr.getOrderBook();
 		double pegOffset;
 		pegOffset = stopPrice
 				- (double) orderBook.getBestAskPriceOrNone() * instr.getTickSize();
@@ -163,16 +192,15 @@ public class TradeConnector {
 		return json;
 	}
 
-	public UnitOrder cancelOrder(String orderId) {
+	public CompletableFuture<String> cancelOrder(String orderId) {
 		JsonObject json = new JsonObject();
 		json.addProperty("orderID", orderId);
 		String data = json.toString();
-		String res = require(GeneralType.ORDER, Method.DELETE, data);
-		Log.info("[bitmex] TradeConnector cancelOrder: " + res);
-		return null;
+		return requireAsync(GeneralType.ORDER, Method.DELETE, data, false, Collections.singletonList(orderId))
+				.whenComplete((res, failure) -> Log.info("[bitmex] TradeConnector cancelOrder: " + res));
 	}
 
-	public void cancelOrder(List<String> orderIds) {
+	public CompletableFuture<String> cancelOrder(List<String> orderIds) {
 		StringBuilder sb = new StringBuilder("");
 		sb.append("orderID=");
 		for (String orderId : orderIds) {
@@ -181,7 +209,7 @@ public class TradeConnector {
 		sb.setLength(sb.length() - 1);
 		String data1 = sb.toString();
 		Log.info("[bitmex] TradeConnector cancelOrder (bulk): " + data1);
-		require(GeneralType.ORDER, Method.DELETE, data1, true);
+		return requireAsync(GeneralType.ORDER, Method.DELETE, data1, true, orderIds);
 	}
 
 	public String resizeOrder(String orderId, long orderQty) {
@@ -236,71 +264,263 @@ public class TradeConnector {
 	}
 
 	public String require(GeneralType genType, Method method, String data, boolean isOrderListBeingCanceled) {
-		String subPath = ConnectorUtils.subPaths.get(genType);
-		String path = provider.getConnector().getRestApi() + subPath;
-		long moment = ConnectorUtils.getMomentAndTimeToLive();
-		
-		Log.info("[bitmex] TradeConnector makeRestGetQuery(xx) moment = " + moment);
+		CompletableFuture<RestClient.Response> future = send(getLane(method), genType, method, data,
+				isOrderListBeingCanceled);
+		try {
+			return processResponse(future.get(), null);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.info("[bitmex] TradeConnector require: interrupted");
+			return null;
+		} catch (ExecutionException e) {
+			return processResponse(null, e.getCause());
+		}
+	}
 
-		Log.info("[bitmex] TradeConnector require:  sending data => " + data);
+	/**
+	 * Cancels go first, everything else is an order request
+	 */
+	private static RateGovernor.Lane getLane(Method method) {
+		return method == Method.DELETE ? RateGovernor.Lane.CANCEL : RateGovernor.Lane.ORDER;
+	}
 
-		try {
-			URL url = new URL(path);
-			HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+	public CompletableFuture<String> requireAsync(GeneralType genType, Method method, String data,
+			boolean isOrderListBeingCanceled, Collection<String> orderIds) {
+		return requireAsync(getLane(method), genType, method, data, isOrderListBeingCanceled, orderIds);
+	}
 
-			if (!method.equals(Method.GET)) {
-				// if (method.equals(Method.POST) || method.equals(Method.PUT)){
-				conn.setDoOutput(true);
+	/**
+	 * Same as require but returns at once. Requests changing the same order
+	 * are sent one after another in the order they are made, so two moves of
+	 * an order cannot overtake each other, other requests go in parallel.
+	 *
+	 * @param lane
+	 *            priority of the request in the RateGovernor
+	 * @param orderIds
+	 *            orders the request changes, empty for new orders
+	 * @return completed on an order thread with the error reported by BitMEX
+	 *         or null
+	 */
+	public CompletableFuture<String> requireAsync(RateGovernor.Lane lane, GeneralType genType, Method method,
+			String data, boolean isOrderListBeingCanceled, Collection<String> orderIds) {
+		List<String> ids = new ArrayList<>(orderIds);
+		CompletableFuture<String> request;
+
+		synchronized (orderRequests) {
+			List<CompletableFuture<String>> previous = new ArrayList<>();
+			for (String id : ids) {
+				CompletableFuture<String> future = orderRequests.get(id);
+				if (future != null) {
+					previous.add(future);
+				}
+			}
+			CompletableFuture<?> ready = previous.isEmpty() ? CompletableFuture.completedFuture(null)
+					: CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0]));
+			request = ready.handle((result, failure) -> null).thenCompose(
+					nothing -> dispatch(lane, genType, method, data, isOrderListBeingCanceled, ids));
+			for (String id : ids) {
+				orderRequests.put(id, request);
+			}
+		}
+		request.whenComplete((result, failure) -> {
+			synchronized (orderRequests) {
+				for (String id : ids) {
+					orderRequests.remove(id, request);
+				}
 			}
-			// arguable at the moment
-			conn.setDoOutput(true);
-
-			String messageBody = ConnectorUtils.createMessageBody(ConnectorUtils.methods.get(method), subPath, data,
-					moment);
-			String signature = ConnectorUtils.generateSignature(orderApiSecret, messageBody);
-			conn.setRequestMethod(ConnectorUtils.methods.get(method));
-			String contentType = genType.equals(GeneralType.ORDERBULK) || isOrderListBeingCanceled
-					? "application/x-www-form-urlencoded" : "application/json";
-
-			conn.setRequestProperty("Content-Type", contentType);
-			conn.setRequestProperty("Accept", "application/json");
-			conn.setRequestProperty("api-expires", Long.toString(moment));
-			conn.setRequestProperty("api-key", orderApiKey);
-			conn.setRequestProperty("api-signature", signature);
-			conn.setRequestProperty("Content-Length", Integer.toString(data.getBytes("UTF-8").length));
-
-			OutputStream os = conn.getOutputStream();
-			OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-			osw.write(data);
-			osw.flush();
-			osw.close();
-
-			String rateLimitIfExists = ConnectorUtils.processRateLimitHeaders(conn.getHeaderFields());
-			if (rateLimitIfExists != null) {
-				provider.pushRateLimitWarning(rateLimitIfExists);
+		});
+		return request;
+	}
+
+	/**
+	 * Single new orders and single cancels go to their batcher, anything else
+	 * is sent as it is
+	 */
+	private CompletableFuture<String> dispatch(RateGovernor.Lane lane, GeneralType genType, Method method,
+			String data, boolean isOrderListBeingCanceled, List<String> ids) {
+		if (genType == GeneralType.ORDER && method == Method.POST) {
+			return getNewOrderBatcher(data).add(data);
+		}
+		if (genType == GeneralType.ORDER && method == Method.DELETE && !isOrderListBeingCanceled && ids.size() == 1) {
+			return cancelBatcher.add(ids.get(0));
+		}
+		return send(lane, genType, method, data, isOrderListBeingCanceled).handleAsync(this::processResponse,
+				orderExecutor);
+	}
+
+	/**
+	 * A bulk request must be for one symbol, so new orders are batched per
+	 * symbol
+	 */
+	private OrderBatcher getNewOrderBatcher(String order) {
+		JsonElement symbol = JsonParser.gson.fromJson(order, JsonObject.class).get("symbol");
+		String key = symbol == null || symbol.isJsonNull() ? "" : symbol.getAsString();
+		return newOrderBatchers.computeIfAbsent(key,
+				k -> new OrderBatcher("new orders " + k, ConnectorUtils.ORDER_BATCH_WINDOW_MS,
+						ConnectorUtils.ORDER_BATCH_MAX, orderExecutor, this::sendNewOrders));
+	}
+
+	/**
+	 * More than one order goes to /order/bulk. BitMEX accepts or rejects them
+	 * all, so if it rejects them as a bad request, which one order of the
+	 * batch is enough for, they are sent again one by one and each caller
+	 * gets the answer to its own order.
+	 */
+	private CompletableFuture<List<String>> sendNewOrders(List<String> orders) {
+		if (orders.size() == 1) {
+			return sendNewOrder(orders.get(0)).thenApply(Collections::singletonList);
+		}
+		String data = "orders=[" + String.join(",", orders) + "]";
+		Log.info("[bitmex] TradeConnector sendNewOrders: " + orders.size() + " orders in one request");
+		return send(RateGovernor.Lane.ORDER, GeneralType.ORDERBULK, Method.POST, data, false)
+				.handleAsync((resp, failure) -> {
+					String response = processResponse(resp, failure);
+					if (response != null && resp.getStatus() == 400) {
+						// nothing has been placed
+						return null;
+					}
+					return Collections.nCopies(orders.size(), response);
+				}, orderExecutor).thenCompose(results -> results != null ? CompletableFuture.completedFuture(results)
+						: sendNewOrdersOneByOne(orders));
+	}
+
+	private CompletableFuture<List<String>> sendNewOrdersOneByOne(List<String> orders) {
+		Log.info("[bitmex] TradeConnector sendNewOrders: bulk of " + orders.size()
+				+ " orders rejected, sending them one by one");
+		List<CompletableFuture<String>> futures = new ArrayList<>();
+		for (String order : orders) {
+			futures.add(sendNewOrder(order));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(nothing -> {
+			List<String> results = new ArrayList<>();
+			for (CompletableFuture<String> future : futures) {
+				results.add(future.join());
 			}
+			return results;
+		});
+	}
+
+	private CompletableFuture<String> sendNewOrder(String order) {
+		return send(RateGovernor.Lane.ORDER, GeneralType.ORDER, Method.POST, order, false)
+				.handleAsync(this::processResponse, orderExecutor);
+	}
 
-			if (conn.getResponseCode() != 200) {
-				BufferedReader br = new BufferedReader(new InputStreamReader((conn.getErrorStream())));
-				StringBuilder sb = new StringBuilder("");
-				String output = null;
+	/**
+	 * More than one order is canceled by one DELETE with the id list, BitMEX
+	 * answers with the orders, an order that could not be canceled carries
+	 * its own error
+	 */
+	private CompletableFuture<List<String>> sendCancels(List<String> orderIds) {
+		if (orderIds.size() == 1) {
+			JsonObject json = new JsonObject();
+			json.addProperty("orderID", orderIds.get(0));
+			return send(RateGovernor.Lane.CANCEL, GeneralType.ORDER, Method.DELETE, json.toString(), false)
+					.handleAsync(this::processResponse, orderExecutor).thenApply(Collections::singletonList);
+		}
+		String data = "orderID=" + String.join(",", orderIds);
+		Log.info("[bitmex] TradeConnector sendCancels: " + orderIds.size() + " cancels in one request");
+		return send(RateGovernor.Lane.CANCEL, GeneralType.ORDER, Method.DELETE, data, true)
+				.handleAsync((resp, failure) -> {
+					String response = processResponse(resp, failure);
+					List<String> results = new ArrayList<>(Collections.nCopies(orderIds.size(), response));
+					if (response == null && resp != null && resp.getStatus() == 200) {
+						Map<String, String> errors = getOrderErrors(resp.getBody());
+						for (int i = 0; i < orderIds.size(); i++) {
+							results.set(i, errors.get(orderIds.get(i)));
+						}
+					}
+					return results;
+				}, orderExecutor);
+	}
 
-				while ((output = br.readLine()) != null) {
-					sb.append(output);
+	/**
+	 * @return errors of the orders in the answer by order id
+	 */
+	private static Map<String, String> getOrderErrors(String body) {
+		Map<String, String> errors = new HashMap<>();
+		try {
+			JsonArray orders = JsonParser.gson.fromJson(body, JsonArray.class);
+			for (JsonElement element : orders) {
+				JsonObject order = element.getAsJsonObject();
+				JsonElement error = order.get("error");
+				if (order.has("orderID") && error != null && !error.isJsonNull()) {
+					errors.put(order.get("orderID").getAsString(), error.getAsString());
 				}
-				Log.info("[bitmex] TradeConnector require:  response =>" + sb.toString());
-				String resp = Provider.testReponseForError(sb.toString());
-				return resp;
 			}
-		} catch (UnknownHostException | NoRouteToHostException e) {
-			Log.info("[bitmex] TradeConnector require: no response from server");
-		} catch (java.net.SocketException e) {
-			Log.info("[bitmex] TradeConnector require: network is unreachable");
-		} catch (IOException e) {
-			Log.info("[bitmex] TradeConnector require: buffer reading error");
-			e.printStackTrace();
+		} catch (RuntimeException e) {
+			Log.info("[bitmex] TradeConnector getOrderErrors: unexpected answer " + body);
+		}
+		return errors;
+	}
+
+	/**
+	 * @return the governor every signed request of this key goes through
+	 */
+	public RateGovernor getGovernor() {
+		return governor;
+	}
+
+	public String getStats() {
+		StringBuilder sb = new StringBuilder(cancelBatcher.getStats());
+		for (OrderBatcher batcher : newOrderBatchers.values()) {
+			sb.append(" ").append(batcher.getStats());
+		}
+		return sb.toString();
+	}
+
+	private CompletableFuture<RestClient.Response> send(RateGovernor.Lane lane, GeneralType genType,
+			Method method, String data, boolean isOrderListBeingCanceled) {
+		String subPath = ConnectorUtils.subPaths.get(genType);
+		String path = provider.getConnector().getRestApi() + subPath;
+		String methodName = ConnectorUtils.methods.get(method);
+		String contentType = genType.equals(GeneralType.ORDERBULK) || isOrderListBeingCanceled
+				? "application/x-www-form-urlencoded" : "application/json";
+
+		return governor.submit(lane, () -> {
+			// signed when the token is granted, not when queued
+			long moment = ConnectorUtils.getMomentAndTimeToLive();
+
+			Log.info("[bitmex] TradeConnector makeRestGetQuery(xx) moment = " + moment);
+
+			Log.info("[bitmex] TradeConnector require:  sending data => " + data);
+
+			return RestClient.shared().sendAsync(methodName, path, createHeaders(methodName, subPath, data, moment),
+					contentType, method.equals(Method.GET) ? null : data);
+		});
+	}
+
+	/**
+	 * @return the error reported by BitMEX or null, also when there is no
+	 *         response
+	 */
+	private String processResponse(RestClient.Response resp, Throwable failure) {
+		if (failure != null) {
+			IOException e = RestClient.toIOException(failure);
+			if (e instanceof UnknownHostException || e instanceof NoRouteToHostException) {
+				Log.info("[bitmex] TradeConnector require: no response from server");
+			} else if (e instanceof java.net.SocketException) {
+				Log.info("[bitmex] TradeConnector require: network is unreachable");
+			} else {
+				Log.info("[bitmex] TradeConnector require: request failed");
+				e.printStackTrace();
+			}
+			return null;
+		}
+
+		String rateLimitIfExists = ConnectorUtils.processRateLimitHeaders(resp.getHeaders());
+		if (rateLimitIfExists != null) {
+			provider.pushRateLimitWarning(rateLimitIfExists);
+		}
+
+		if (resp.getStatus() != 200) {
+			Log.info("[bitmex] TradeConnector require:  response =>" + resp.getBody());
+			return Provider.testReponseForError(resp.getBody());
 		}
 		return null;
 	}
 
+	public void close() {
+		orderExecutor.shutdown();
+	}
+
 }
@@ -2,6 +2,8 @@ package com.bookmap.plugins.layer0.bitmex.adapter;
 
 public class UnitTrade extends UnitData{
 
+	private String trdMatchID;
+
 	public UnitTrade() {
 		super();
 		// TODO Auto-generated constructor stub
@@ -12,5 +14,8 @@ public class UnitTrade extends UnitData{
 		// TODO Auto-generated constructor stub
 	}
 
-	
+	public String getTrdMatchID() {
+		return trdMatchID;
+	}
+
 }
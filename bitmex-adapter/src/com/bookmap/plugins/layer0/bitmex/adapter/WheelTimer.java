@@ -0,0 +1,200 @@
+package com.bookmap.plugins.layer0.bitmex.adapter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * Hashed timer wheel shared by the whole adapter for snapshot timeouts,
+ * pings and other housekeeping. One thread moves the wheel a tick at a time
+ * and hands expired tasks to a small worker pool, so a slow task never
+ * delays the others and the number of threads does not depend on how many
+ * instruments and sockets there are. Deadlines are precise to a tick.
+ **/
+public class WheelTimer {
+
+	/**
+	 * Handle of a scheduled task
+	 **/
+	public static class Timeout {
+		private final Runnable task;
+		// 0 for a one-shot task
+		private final long periodTicks;
+		private long deadlineTick;
+		private long rounds;
+		private Timeout next;
+		private volatile boolean isCancelled = false;
+
+		private Timeout(Runnable task, long periodTicks) {
+			this.task = task;
+			this.periodTicks = periodTicks;
+		}
+
+		/**
+		 * The task is not run after this, a run in progress is not
+		 * interrupted
+		 */
+		public void cancel() {
+			isCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return isCancelled;
+		}
+	}
+
+	private static WheelTimer shared;
+
+	private final long tickNanos;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final ExecutorService workers;
+	private final AtomicInteger scheduledCount = new AtomicInteger();
+	private final long startTime = System.nanoTime();
+	// written by the wheel thread only
+	private long tick = 0;
+
+	/**
+	 * @return the adapter's timer, started on first use and never stopped
+	 */
+	public static synchronized WheelTimer shared() {
+		if (shared == null) {
+			shared = new WheelTimer(ConnectorUtils.TIMER_TICK_MS, 512, ConnectorUtils.TIMER_WORKERS);
+		}
+		return shared;
+	}
+
+	/**
+	 * @param wheelSize
+	 *            must be a power of 2
+	 */
+	public WheelTimer(long tickMs, int wheelSize, int workersCount) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+		this.wheel = new Timeout[wheelSize];
+		this.mask = wheelSize - 1;
+
+		class CustomThreadFactory implements ThreadFactory {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "-> BmConnector: timer worker " + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+
+		workers = Executors.newFixedThreadPool(workersCount, new CustomThreadFactory());
+		Thread wheelThread = new Thread(this::turn, "-> BmConnector: timer");
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+		Log.info("[bitmex] WheelTimer: started, tickMs=" + tickMs + " wheelSize=" + wheelSize + " workers="
+				+ workersCount);
+	}
+
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, 0);
+		add(timeout, unit.toNanos(delay));
+		return timeout;
+	}
+
+	/**
+	 * The next run is scheduled when the previous one is over
+	 */
+	public Timeout scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, Math.max(1, unit.toNanos(delay) / tickNanos));
+		add(timeout, unit.toNanos(initialDelay));
+		return timeout;
+	}
+
+	private void add(Timeout timeout, long delayNanos) {
+		long elapsedTicks = (System.nanoTime() - startTime) / tickNanos;
+		// rounded up, a task never runs early
+		timeout.deadlineTick = elapsedTicks + (delayNanos + tickNanos - 1) / tickNanos;
+		scheduledCount.incrementAndGet();
+		added.add(timeout);
+	}
+
+	private void turn() {
+		while (true) {
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleepNanos;
+			while ((sleepNanos = deadline - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					Log.info("[bitmex] WheelTimer turn: interrupted");
+					return;
+				}
+			}
+			tick++;
+			transferAdded();
+			expire(wheel[(int) (tick & mask)], (int) (tick & mask));
+		}
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.isCancelled) {
+				scheduledCount.decrementAndGet();
+				continue;
+			}
+			long ticks = Math.max(timeout.deadlineTick, tick);
+			timeout.rounds = (ticks - tick) / wheel.length;
+			int index = (int) (ticks & mask);
+			timeout.next = wheel[index];
+			wheel[index] = timeout;
+		}
+	}
+
+	private void expire(Timeout head, int index) {
+		Timeout kept = null;
+		Timeout timeout = head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.isCancelled) {
+				scheduledCount.decrementAndGet();
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+				timeout.next = kept;
+				kept = timeout;
+			} else {
+				run(timeout);
+			}
+			timeout = next;
+		}
+		wheel[index] = kept;
+	}
+
+	private void run(Timeout timeout) {
+		timeout.next = null;
+		workers.execute(() -> {
+			try {
+				if (!timeout.isCancelled) {
+					timeout.task.run();
+				}
+			} catch (Exception e) {
+				Log.info("[bitmex] WheelTimer run: task failed");
+				e.printStackTrace();
+			} finally {
+				if (timeout.periodTicks > 0 && !timeout.isCancelled) {
+					add(timeout, timeout.periodTicks * tickNanos);
+				}
+				scheduledCount.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * @return tasks waiting for their time or running
+	 */
+	public int getScheduledCount() {
+		return scheduledCount.get();
+	}
+}
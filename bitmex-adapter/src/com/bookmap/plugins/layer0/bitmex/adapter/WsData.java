@@ -1,5 +1,7 @@
 package com.bookmap.plugins.layer0.bitmex.adapter;
 
+import java.util.Collection;
+
 import com.bookmap.plugins.layer0.bitmex.adapter.ConnectorUtils.WebSocketOperation;
 
 public class WsData {
@@ -19,6 +21,19 @@ public class WsData {
 		this.args = processArgs(symbol, args);
 	}
 	
+	// every topic for every symbol in one message
+	public WsData(WebSocketOperation op, Collection<String> symbols, Object[] args) {
+		super();
+		this.op = ConnectorUtils.webSocketOperationToString.get(op);
+		this.args = new Object[symbols.size() * args.length];
+		int i = 0;
+		for (String symbol : symbols) {
+			Object[] symbolArgs = processArgs(symbol, args);
+			System.arraycopy(symbolArgs, 0, this.args, i, symbolArgs.length);
+			i += symbolArgs.length;
+		}
+	}
+
 	private Object[] processArgs(String symbol, Object[] args){
 		Object[] newArgs = new Object[args.length];
 		for(int i = 0, n = args.length; i < n; i++){